@@ -74,7 +74,8 @@ public class ChatClient {
                     String msg = String.valueOf(charset.decode(byteBuffer));
                     //每次将缓冲区的内容写出来后都将缓冲区数据清空
                     byteBuffer.clear();
-                    System.out.println(msg);
+                    //服务器发来的每条消息自带\n
+                    System.out.print(msg);
                 }
             }
         } catch (Exception e) {
@@ -91,7 +92,8 @@ public class ChatClient {
             return;
         }
         wBuffer.clear();
-        wBuffer.put(charset.encode(input));
+        //服务器按行分帧，每条消息以\n结尾
+        wBuffer.put(charset.encode(input + "\n"));
         //别人可以读rBuffer了
         wBuffer.flip();
         Future<Integer> writeResult = clientChannel.write(wBuffer);
@@ -1,5 +1,17 @@
 package AIO.chatroom;
 
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+import common.buffer.SharedMessage;
+import common.codec.FrameCodec;
+import common.codec.FrameDecoder;
+import common.codec.FrameTooLongException;
+import common.jfr.CompletionEvent;
+import common.codec.LineCodec;
+import common.metrics.ServerMetrics;
+import common.room.ChatCommand;
+import common.room.RoomRegistry;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -9,9 +21,15 @@ import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Zhang Ruilong
@@ -24,19 +42,49 @@ public class ChatServer {
     private final static String QUIT="quit";
     private final static int BUFFER=1024;
     private final static int THREADPOOL_SIZE=8;
+    private final static int MAX_FRAME_LENGTH=64 * 1024;
+    //一次聚集写最多合并多少条消息
+    private final static int MAX_GATHER=64;
+    //每个连接最多积压多少条没写出去的消息，再多就丢掉
+    private final static int MAX_PENDING_WRITES=4096;
 
     private AsynchronousChannelGroup channelGroup;
     private AsynchronousServerSocketChannel serverSocketChannel;
     private Charset charset = Charset.forName("UTF-8");
     private int port;
-    private ArrayList<ClientHandler> connectedClients = new ArrayList<>();
+    //处理回调的线程数
+    private int threadPoolSize;
+    //多个回调线程同时加入、移除、遍历，不加锁
+    private Set<ClientHandler> connectedClients = ConcurrentHashMap.newKeySet();
+    //聊天室，成员按identityHashCode分片
+    private RoomRegistry<ClientHandler> rooms;
+    //默认按行分帧，客户端每条消息以\n结尾
+    private FrameCodec frameCodec = new LineCodec(MAX_FRAME_LENGTH);
+    //读缓冲区和发出去的消息都从池里借直接缓冲区
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private WriteHandler writeHandler = new WriteHandler();
+    private ServerMetrics metrics = ServerMetrics.of("aio");
 
     public ChatServer() {
-        this.port = DEFAULT_PORT;
+        this(DEFAULT_PORT);
     }
 
     public ChatServer(int port) {
+        this(port, THREADPOOL_SIZE);
+    }
+
+    public ChatServer(int port, int threadPoolSize) {
         this.port = port;
+        this.threadPoolSize = threadPoolSize;
+        this.rooms = new RoomRegistry<>(threadPoolSize);
+    }
+
+    public void setFrameCodec(FrameCodec frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
     }
     private void close(Closeable closeable) {
         if (closeable != null) {
@@ -63,21 +111,31 @@ public class ChatServer {
     /**
      * 添加用户
      */
-    private synchronized void addClient(ClientHandler clientHandler) {
+    private void addClient(ClientHandler clientHandler) {
         connectedClients.add(clientHandler);
+        metrics.connectionOpened();
+        //连上来先进大厅
+        rooms.join(ChatCommand.LOBBY, clientHandler);
         System.out.println(getClientName(clientHandler.clientChannel) + "已经连接到服务器");
     }
 
     /**
-     * 移除用户
+     * 移除用户，可能被多个回调同时调用，只有第一次真正生效
      */
-    private synchronized void removeClient(ClientHandler clientHandler) {
-        connectedClients.remove(clientHandler);
+    private void removeClient(ClientHandler clientHandler) {
+        if (!connectedClients.remove(clientHandler)) {
+            return;
+        }
+        //先标记再退出房间，读线程join之后看到标记会自己再退一次
+        clientHandler.removed = true;
+        metrics.connectionClosed();
+        rooms.leaveAll(clientHandler);
         System.out.println(getClientName(clientHandler.clientChannel)+"已被移除");
         close(clientHandler.clientChannel);
     }
     public void start() {
-        ExecutorService executorService = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        ExecutorService executorService = Executors.newFixedThreadPool(threadPoolSize);
+        metrics.bindBufferPool(bufferPool);
         try {
             channelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
             serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
@@ -98,6 +156,21 @@ public class ChatServer {
     private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel,Object> {
         @Override
         public void completed(AsynchronousSocketChannel clientChannel, Object attachment) {
+            CompletionEvent event = new CompletionEvent();
+            event.begin();
+            try {
+                accepted(clientChannel);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.server = "aio";
+                    event.operation = CompletionEvent.ACCEPT;
+                    event.commit();
+                }
+            }
+        }
+
+        private void accepted(AsynchronousSocketChannel clientChannel) {
             //继续监听下一个连接
             if (serverSocketChannel.isOpen()){
                 //在回调函数中调用回调函数，底层实现会限制递归层级，不用太担心
@@ -105,10 +178,11 @@ public class ChatServer {
             }
             //在这里又要进行异步调用read，来接收信息
             if (clientChannel.isOpen() && clientChannel!=null) {
-                //读操作
-                ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+                //读操作，读缓冲区从池里借，连接断开时还回去
+                PooledBuffer readBuffer = bufferPool.acquire(BUFFER);
+                ByteBuffer buffer = readBuffer.buffer();
                 //新用户添加到用户列表
-                ClientHandler handler = new ClientHandler(clientChannel);
+                ClientHandler handler = new ClientHandler(clientChannel, frameCodec.newDecoder(), readBuffer);
                 addClient(handler);
                 clientChannel.read(buffer,buffer, handler);
             }
@@ -120,45 +194,238 @@ public class ChatServer {
     }
     private class ClientHandler implements CompletionHandler<Integer,Object> {
         private AsynchronousSocketChannel clientChannel;
+        //一次read可能是半条或者好几条消息，由decoder切成完整的帧
+        private FrameDecoder decoder;
+        private PooledBuffer readBuffer;
+
+        //等着写的消息；同一时刻一个连接只能有一个写操作，否则会抛WritePendingException
+        private final Queue<SharedMessage> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private volatile boolean writeClosed;
+        //已经从在线列表移除，写失败时在写线程里移除，读线程可能还在处理消息
+        private volatile boolean removed;
+        //正在写的这一批，只有持有writing的线程才能访问，数组复用不用每次分配
+        private final SharedMessage[] inFlight = new SharedMessage[MAX_GATHER];
+        private final ByteBuffer[] inFlightViews = new ByteBuffer[MAX_GATHER];
+        private int inFlightOffset;
+        private int inFlightCount;
 
-        public ClientHandler(AsynchronousSocketChannel clientChannel) {
+        public ClientHandler(AsynchronousSocketChannel clientChannel, FrameDecoder decoder, PooledBuffer readBuffer) {
             this.clientChannel = clientChannel;
+            this.decoder = decoder;
+            this.readBuffer = readBuffer;
+        }
+
+        /**
+         * 在读的回调里移除连接，这时没有读操作在进行，可以把读缓冲区还回去
+         */
+        private void closeFromRead() {
+            removeClient(this);
+            releaseBuffer();
+        }
+
+        /**
+         * 只能在没有读操作进行中的时候调用，否则内核可能还在往这块内存里写
+         */
+        private synchronized void releaseBuffer() {
+            if (readBuffer != null) {
+                readBuffer.release();
+                readBuffer = null;
+            }
         }
 
         public AsynchronousSocketChannel getClientChannel() {
             return clientChannel;
         }
 
+        /**
+         * 把消息放进写队列，可以在任意线程调用；没有写操作在进行就启动一次
+         */
+        private void send(SharedMessage message) {
+            if (writeClosed) {
+                return;
+            }
+            if (pendingCount.get() >= MAX_PENDING_WRITES) {
+                metrics.messageDropped();
+                return;
+            }
+            pendingWrites.offer(message.retain());
+            pendingCount.incrementAndGet();
+            metrics.messageQueued();
+            if (writeClosed) {
+                //入队的同时连接被关了，没人会再写这个队列了
+                discardPending();
+                return;
+            }
+            if (writing.compareAndSet(false, true)) {
+                writeNextBatch();
+            }
+        }
+
+        /**
+         * 把队列里的消息合成一批，用一次聚集写发出去，必须持有writing
+         */
+        private void writeNextBatch() {
+            int count = 0;
+            SharedMessage message;
+            while (count < MAX_GATHER && (message = pendingWrites.poll()) != null) {
+                inFlight[count] = message;
+                inFlightViews[count] = message.view();
+                count++;
+            }
+            if (count == 0) {
+                writing.set(false);
+                //放掉writing之前有消息入队，但send看到writing还是true就没有启动写，这里补上
+                if (!pendingWrites.isEmpty() && writing.compareAndSet(false, true)) {
+                    writeNextBatch();
+                }
+                return;
+            }
+            pendingCount.addAndGet(-count);
+            inFlightOffset = 0;
+            inFlightCount = count;
+            writeInFlight();
+        }
+
+        private void writeInFlight() {
+            try {
+                clientChannel.write(inFlightViews, inFlightOffset, inFlightCount - inFlightOffset,
+                        0L, TimeUnit.MILLISECONDS, this, writeHandler);
+            } catch (Exception e) {
+                onWriteFailed();
+            }
+        }
+
+        /**
+         * 一次聚集写完成了，可能只写了一部分
+         */
+        private void onWriteCompleted() {
+            while (inFlightOffset < inFlightCount && !inFlightViews[inFlightOffset].hasRemaining()) {
+                metrics.messageSent();
+                inFlight[inFlightOffset].release();
+                inFlight[inFlightOffset] = null;
+                inFlightViews[inFlightOffset] = null;
+                inFlightOffset++;
+            }
+            if (inFlightOffset < inFlightCount) {
+                //socket缓冲区满了只写了一部分，从没写完的那条接着写
+                writeInFlight();
+            } else {
+                writeNextBatch();
+            }
+        }
+
+        /**
+         * 写失败了，连接不能用了，手里和队列里的消息都放掉
+         */
+        private void onWriteFailed() {
+            writeClosed = true;
+            metrics.messagesDiscarded(inFlightCount - inFlightOffset);
+            for (int i = inFlightOffset; i < inFlightCount; i++) {
+                inFlight[i].release();
+                inFlight[i] = null;
+                inFlightViews[i] = null;
+            }
+            inFlightOffset = inFlightCount = 0;
+            discardPending();
+            removeClient(this);
+        }
+
+        private void discardPending() {
+            SharedMessage message;
+            while ((message = pendingWrites.poll()) != null) {
+                pendingCount.decrementAndGet();
+                metrics.messagesDiscarded(1);
+                message.release();
+            }
+        }
+
         @Override
         public void completed(Integer result, Object attachment) {
+            CompletionEvent event = new CompletionEvent();
+            event.begin();
+            try {
+                readCompleted(result, attachment);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.server = "aio";
+                    event.operation = CompletionEvent.READ;
+                    event.result = result;
+                    event.commit();
+                }
+            }
+        }
+
+        private void readCompleted(Integer result, Object attachment) {
             //写回clientChannel
             ByteBuffer buffer = (ByteBuffer) attachment;
             if (buffer!=null) {
                 if (result<=0) {
                     //用户异常下线，移除用户
-                    connectedClients.remove(this);
+                    closeFromRead();
                 } else {
+                    metrics.bytesRead(result);
                     buffer.flip();
-                    //读取信息
-                    String fwdMsg = receive(buffer);
-                    System.out.println(getClientName(clientChannel) + ":" +fwdMsg);
-                    //转发信息
-                    forwardMessage(clientChannel,fwdMsg);
-                    buffer.clear();
-                    // 检查用户是否退出
-                    if (checkQuit(fwdMsg)){
-                        // 将客户从在线客户列表中去除
-                        removeClient(this);
-                    }else {
-                        // 接着读
-                        clientChannel.read(buffer,buffer,this);
+                    try {
+                        ByteBuffer frame;
+                        while ((frame = decoder.decode(buffer)) != null) {
+                            metrics.messageReceived();
+                            //读取信息
+                            String fwdMsg = receive(frame);
+                            System.out.println(getClientName(clientChannel) + ":" +fwdMsg);
+                            // 检查用户是否退出
+                            if (checkQuit(fwdMsg)){
+                                // 将客户从在线客户列表中去除
+                                closeFromRead();
+                                return;
+                            }
+                            //加入退出房间或者转发信息
+                            dispatch(this,fwdMsg);
+                        }
+                    } catch (FrameTooLongException e) {
+                        closeFromRead();
+                        return;
                     }
+                    buffer.clear();
+                    // 接着读
+                    clientChannel.read(buffer,buffer,this);
                 }
             }
         }
         @Override
         public void failed(Throwable exc, Object attachment) {
+            //读失败了，连接已经不能用了
+            closeFromRead();
+        }
+    }
 
+    /**
+     * 写操作的回调，和读的回调ClientHandler分开，attachment是写的那个连接
+     */
+    private class WriteHandler implements CompletionHandler<Long, ClientHandler> {
+        @Override
+        public void completed(Long result, ClientHandler clientHandler) {
+            CompletionEvent event = new CompletionEvent();
+            event.begin();
+            try {
+                metrics.bytesWritten(result);
+                clientHandler.onWriteCompleted();
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.server = "aio";
+                    event.operation = CompletionEvent.WRITE;
+                    event.result = result;
+                    event.commit();
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, ClientHandler clientHandler) {
+            clientHandler.onWriteFailed();
         }
     }
 
@@ -170,21 +437,55 @@ public class ChatServer {
         return String.valueOf(charset.decode(buffer));
     }
 
-    private synchronized void forwardMessage(AsynchronousSocketChannel clientChannel, String fwdMsg) {
-        for (ClientHandler connectedClient : connectedClients) {
-            if (!connectedClient.clientChannel.equals(clientChannel)) {
-                try {
-                    // 防止发生意想不到的错误或异常
-                    ByteBuffer byteBuffer = charset.encode(getClientName(connectedClient.clientChannel) + ":" + fwdMsg);
-                    connectedClient.clientChannel.write(byteBuffer, null, connectedClient);
-                } catch (Exception e) {
-                    e.printStackTrace();
+    /**
+     * 处理一条消息：加入/退出房间，或者在房间里发言
+     */
+    private void dispatch(ClientHandler sender, String msg) {
+        ChatCommand command = ChatCommand.parse(msg);
+        switch (command.getType()) {
+            case JOIN:
+                rooms.join(command.getRoom(), sender);
+                if (sender.removed) {
+                    //join的同时写线程把它移除了，撤销这次加入
+                    rooms.leaveAll(sender);
                 }
-            }
+                break;
+            case LEAVE:
+                rooms.leave(command.getRoom(), sender);
+                break;
+            case PUBLISH:
+                // 只能在自己加入了的房间发言
+                if (rooms.isMember(command.getRoom(), sender)) {
+                    forwardMessage(sender, command.getRoom(), command.getText());
+                }
+                break;
+            default:
+                break;
         }
     }
 
+    /**
+     * 转发给房间里除了发送者外的所有人，只遍历这个房间的成员
+     */
+    private void forwardMessage(ClientHandler sender, String room, String fwdMsg) {
+        long start = System.nanoTime();
+        // 消息只编码一次，带上发送者的名字，每个接收方拿一个只读视图去写
+        SharedMessage message = SharedMessage.encode(bufferPool, frameCodec, charset,
+                ChatCommand.format(room, getClientName(sender.clientChannel) + ":" + fwdMsg));
+        rooms.forEachMember(room, connectedClient -> {
+            if (connectedClient != sender) {
+                // 放进接收方的写队列，入队时retain，写完后release
+                connectedClient.send(message);
+            }
+        });
+        // 放掉创建时的引用，所有写都完成后缓冲区回到池里
+        message.release();
+        metrics.recordFanout(System.nanoTime() - start);
+    }
+
     public static void main(String[] args) {
-        new ChatServer(7777).start();
+        //java AIO.chatroom.ChatServer [回调线程数]
+        int threadPoolSize = args.length > 0 ? Integer.parseInt(args[0]) : THREADPOOL_SIZE;
+        new ChatServer(7777, threadPoolSize).start();
     }
 }
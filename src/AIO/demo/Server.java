@@ -1,5 +1,8 @@
 package AIO.demo;
 
+import common.buffer.BufferPool;
+import common.buffer.PooledBuffer;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -20,6 +23,8 @@ public class Server {
     private final String DEFAULT_HOST="localhost";
     private final int DEFAULT_PORT = 8888;
     AsynchronousServerSocketChannel serverSocketChannel;
+    //每个连接的缓冲区从池里借，断开时还回去
+    private BufferPool bufferPool = BufferPool.getDefault();
 
     private void close(Closeable closeable) {
         if (closeable != null) {
@@ -68,12 +73,13 @@ public class Server {
             AsynchronousSocketChannel clientChannel = result;
             if (clientChannel.isOpen() && clientChannel!=null) {
                 //读操作
-                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                PooledBuffer pooled = bufferPool.acquire(1024);
+                ByteBuffer buffer = pooled.buffer();
                 HashMap<String, Object> info = new HashMap<>();
                 info.put("type","read");
                 info.put("buffer",buffer);
                 //attachment告诉handler刚刚完成的是读操作还是写操作，将这些参数传给clientHandler
-                clientChannel.read(buffer,info,new ClientHandler(clientChannel));
+                clientChannel.read(buffer,info,new ClientHandler(clientChannel, pooled));
             }
         }
         /**
@@ -86,34 +92,53 @@ public class Server {
     }
     private class ClientHandler implements CompletionHandler<Integer,Object> {
         private AsynchronousSocketChannel clientChannel;
+        private PooledBuffer pooled;
 
-        public ClientHandler(AsynchronousSocketChannel clientChannel) {
+        public ClientHandler(AsynchronousSocketChannel clientChannel, PooledBuffer pooled) {
             this.clientChannel = clientChannel;
+            this.pooled = pooled;
+        }
+
+        /**
+         * 关闭连接并归还缓冲区，此时不能有读写还在进行
+         */
+        private void release() {
+            close(clientChannel);
+            if (pooled != null) {
+                pooled.release();
+                pooled = null;
+            }
         }
 
         @Override
         public void completed(Integer result, Object attachment) {
             Map<String,Object> info = (Map<String, Object>) attachment;
             String type = (String) info.get("type");
-            if ("read".equals(type)) {//刚刚完成的是读操作
+            if ("read".equals(type) && result < 0) {//客户端断开了
+                release();
+            } else if ("read".equals(type)) {//刚刚完成的是读操作
                 //写回clientChannel
                 ByteBuffer buffer = (ByteBuffer) info.get("buffer");
                 buffer.flip();//进入读模式，从buffer读
                 info.put("type","write");
+                //发起异步写之后内核还在用buffer，不能再动它
                 clientChannel.write(buffer,info,this);
-                buffer.clear();
             } else if ("write".equals(type)) {//刚刚完成的是写操作
-                //写回clientChannel
                 ByteBuffer buffer = (ByteBuffer) info.get("buffer");
-                buffer.flip();//进入写模式，数据写到buffer
-                info.put("type","write");
-                clientChannel.read(buffer,info,this);
+                if (buffer.hasRemaining()) {
+                    //只写了一部分，接着写
+                    clientChannel.write(buffer,info,this);
+                    return;
+                }
+                //写完了，清空buffer接着读，类型改回read，这样断开时上面能看到result<0
                 buffer.clear();
+                info.put("type","read");
+                clientChannel.read(buffer,info,this);
             }
         }
         @Override
         public void failed(Throwable exc, Object attachment) {
-
+            release();
         }
     }
 
@@ -30,17 +30,19 @@ public class ChatHandler implements Runnable {
             );
             String msg = null;
             while ((msg=reader.readLine())!= null) {
+                chatServer.getMetrics().messageReceived();
                 if (chatServer.checkQuit(msg)) {
-                    //用户主动退出，如果在这里调用removeClient方法的话会有问题
-                    //我们就不能确定catch的时候的Exception是removeClient产生的，还是socket客户端断开导致readLine报错产生的
-                    throw new RuntimeException();
+                    //用户主动退出，和客户端正常关闭一样走到下面移除
+                    break;
                 }
                 //转发消息，这里需要多加一个\n，因为在客户端发的消息的\n在readLine的时候已经被消耗掉了
                 String fwdMsg = "客户端["+socket.getPort()+"]:"+msg+"\n";
                 chatServer.forwordMessage(socket,fwdMsg);
             }
+            //用户退出或者客户端正常关闭（readLine返回null），都要移除，不然之后往它写会失败，连累正在转发的发送者被移除
+            chatServer.removeClient(socket);
         } catch (IOException e) {
-            //两种情况：客户端突然关闭导致readLine出错；客户端正常退出
+            //客户端突然关闭导致readLine出错
             try {
                 chatServer.removeClient(socket);
             } catch (IOException ex) {
@@ -1,5 +1,7 @@
 package BIO.server;
 
+import common.metrics.ServerMetrics;
+
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -16,6 +18,7 @@ public class ChatServer {
     private String QUIT="QUIT";
     private ServerSocket serverSocket;
     private Map<Integer, Writer> connectClients;
+    private ServerMetrics metrics = ServerMetrics.of("bio");
 
     public ChatServer() {
         this.connectClients = new ConcurrentHashMap<>();
@@ -30,6 +33,7 @@ public class ChatServer {
                     new OutputStreamWriter(socket.getOutputStream())
             );
             connectClients.put(port,writer);
+            metrics.connectionOpened();
             System.out.println("客户端["+port+"]已连接");
         }
     }
@@ -42,6 +46,7 @@ public class ChatServer {
             if (connectClients.containsKey(port)) {
                 socket.close();
                 connectClients.remove(port);
+                metrics.connectionClosed();
                 System.out.println("客户端["+port+"]已下线");
             }
         }
@@ -50,13 +55,21 @@ public class ChatServer {
      * 转发消息给除了发送者外的所有客户端
      */
     public void forwordMessage(Socket socket,String fwdMsg) throws IOException {
+        long start = System.nanoTime();
         for (Integer id : connectClients.keySet()) {
             if (id!=socket.getPort()) {
                 Writer writer = connectClients.get(id);
                 writer.write(fwdMsg);
                 writer.flush();
+                metrics.messageWritten();
             }
         }
+        //BIO是在发送者的线程里挨个写完，这个耗时包含了所有的socket写
+        metrics.recordFanout(System.nanoTime() - start);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
     }
     /**
      * 检查发的消息是否是客户端退出
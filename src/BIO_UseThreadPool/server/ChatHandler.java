@@ -1,9 +1,11 @@
 package BIO_UseThreadPool.server;
 
-import java.io.BufferedReader;
+import common.codec.FrameDecoder;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 /**
  * @author Zhang Ruilong
@@ -11,6 +13,7 @@ import java.net.Socket;
  * @des 接收到一个socket客户端就创建一个线程
  */
 public class ChatHandler implements Runnable {
+    private static final int BUFFER = 1024;
     private ChatServer chatServer;//主要是操作chatServer的connectClient
     private Socket socket;//需要知道建立的socket对象
 
@@ -24,23 +27,31 @@ public class ChatHandler implements Runnable {
         try {
             //存储新用户
             chatServer.addClient(socket);
-            //等待新用户发送消息
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
-            );
-            String msg = null;
-            while ((msg=reader.readLine())!= null) {
-                if (chatServer.checkQuit(msg)) {
-                    //用户主动退出，如果在这里调用removeClient方法的话会有问题
-                    //我们就不能确定catch的时候的Exception是removeClient产生的，还是socket客户端断开导致readLine报错产生的
-                    throw new RuntimeException();
+            //等待新用户发送消息，读到的字节交给decoder切成完整的帧
+            InputStream in = socket.getInputStream();
+            FrameDecoder decoder = chatServer.newDecoder();
+            byte[] buffer = new byte[BUFFER];
+            int read;
+            reading:
+            while ((read = in.read(buffer)) != -1) {
+                chatServer.getMetrics().bytesRead(read);
+                ByteBuffer rBuffer = ByteBuffer.wrap(buffer, 0, read);
+                ByteBuffer frame;
+                while ((frame = decoder.decode(rBuffer)) != null) {
+                    chatServer.getMetrics().messageReceived();
+                    String msg = chatServer.decode(frame);
+                    if (chatServer.checkQuit(msg)) {
+                        //用户主动退出，和客户端正常关闭一样走到下面移除
+                        break reading;
+                    }
+                    //加入退出房间或者转发消息，帧尾由codec负责加
+                    chatServer.dispatch(socket,msg);
                 }
-                //转发消息，这里需要多加一个\n，因为在客户端发的消息的\n在readLine的时候已经被消耗掉了
-                String fwdMsg = "客户端["+socket.getPort()+"]:"+msg+"\n";
-                chatServer.forwordMessage(socket,fwdMsg);
             }
+            //用户退出或者客户端正常关闭（read返回-1），都要移除，不然它一直占着房间和信箱
+            chatServer.removeClient(socket);
         } catch (IOException e) {
-            //两种情况：客户端突然关闭导致readLine出错；客户端正常退出
+            //客户端突然关闭导致read出错，或者帧太长
             try {
                 chatServer.removeClient(socket);
             } catch (IOException ex) {
@@ -1,11 +1,18 @@
 package BIO_UseThreadPool.server;
 
-import java.io.BufferedWriter;
+import common.codec.FrameCodec;
+import common.codec.FrameDecoder;
+import common.codec.LineCodec;
+import common.metrics.ServerMetrics;
+import common.room.ChatCommand;
+import common.room.RoomRegistry;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -17,28 +24,106 @@ import java.util.concurrent.Executors;
  * @des 基于BIO模型聊天室的SERVER
  */
 public class ChatServer {
+    /**
+     * handler在什么线程上跑
+     */
+    public enum ExecutorMode {
+        //固定大小的线程池，最多MAX_THREAD_NUM个用户同时在线
+        FIXED_POOL,
+        //每个连接一个虚拟线程（JDK 21+），连接数只受内存限制，ChatHandler的阻塞写法不用改
+        VIRTUAL_THREAD
+    }
+
     private int DEFAULT_PORT=8888;
     private String QUIT="quit";
     private int MAX_THREAD_NUM = 10;
+    private int MAX_FRAME_LENGTH = 64 * 1024;
+    //每个客户端信箱最多积压多少条消息
+    private int MAILBOX_CAPACITY = 1024;
 
     private ExecutorService executorService;
+    //跑每个客户端的写任务
+    private ExecutorService writerExecutor;
+    private ClientWriter.OverflowPolicy overflowPolicy = ClientWriter.OverflowPolicy.DROP_OLDEST;
     private ServerSocket serverSocket;
-    private Map<Integer, Writer> connectClients;
+    private Map<Integer, ClientWriter> connectClients;
+    private ServerMetrics metrics = ServerMetrics.of("pool");
+    //聊天室，成员按identityHashCode分片
+    private RoomRegistry<ClientWriter> rooms = new RoomRegistry<>(MAX_THREAD_NUM);
+    private Charset charset = Charset.forName("UTF-8");
+    //默认按行分帧，和客户端的readLine兼容
+    private FrameCodec frameCodec = new LineCodec(MAX_FRAME_LENGTH);
 
     public ChatServer() {
-        executorService = Executors.newFixedThreadPool(MAX_THREAD_NUM);
+        this(ExecutorMode.FIXED_POOL);
+    }
+
+    public ChatServer(ExecutorMode executorMode) {
+        if (executorMode == ExecutorMode.FIXED_POOL) {
+            executorService = Executors.newFixedThreadPool(MAX_THREAD_NUM);
+            //写任务不能占用handler的线程池，不然10个线程很快就被写任务占满了
+            writerExecutor = Executors.newCachedThreadPool();
+        } else {
+            executorService = newVirtualThreadExecutor();
+            writerExecutor = executorService;
+        }
         this.connectClients = new ConcurrentHashMap<>();
     }
+
+    /**
+     * 想看虚拟线程有没有被钉在载体线程上（比如在synchronized里阻塞），
+     * 用JFR的jdk.VirtualThreadPinned事件，或者启动时加-Djdk.tracePinnedThreads=short打印堆栈
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            //反射调用，代码在JDK 21以下也能编译运行
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("当前JDK不支持虚拟线程，退化为每个连接一个线程");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * 客户端信箱满了的处理方式，需要在start之前调用
+     */
+    public void setOverflowPolicy(ClientWriter.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setFrameCodec(FrameCodec frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 每个连接一个decoder
+     */
+    public FrameDecoder newDecoder() {
+        return frameCodec.newDecoder();
+    }
+
+    /**
+     * 帧内容转成字符串
+     */
+    public String decode(ByteBuffer frame) {
+        return String.valueOf(charset.decode(frame));
+    }
     /**
      * 新上线的用户加到map中
      */
     public void addClient(Socket socket) throws IOException {
         if (socket!=null) {
             int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
-            );
+            ClientWriter writer = new ClientWriter(socket, MAILBOX_CAPACITY, overflowPolicy, writerExecutor, metrics);
             connectClients.put(port,writer);
+            metrics.connectionOpened();
+            //连上来先进大厅
+            rooms.join(ChatCommand.LOBBY, writer);
             System.out.println("客户端["+port+"]已连接");
         }
     }
@@ -48,24 +133,58 @@ public class ChatServer {
     public void removeClient(Socket socket) throws IOException {
         if (socket != null) {
             int port = socket.getPort();
-            if (connectClients.containsKey(port)) {
-                socket.close();
-                connectClients.remove(port);
+            ClientWriter writer = connectClients.remove(port);
+            if (writer != null) {
+                metrics.connectionClosed();
+                rooms.leaveAll(writer);
+                //会一起关闭socket
+                writer.close();
                 System.out.println("客户端["+port+"]已下线");
             }
         }
     }
     /**
-     * 转发消息给除了发送者外的所有客户端
+     * 处理客户端发来的一条消息：加入/退出房间，或者在房间里发言
      */
-    public void forwordMessage(Socket socket,String fwdMsg) throws IOException {
-        for (Integer id : connectClients.keySet()) {
-            if (id!=socket.getPort()) {
-                Writer writer = connectClients.get(id);
-                writer.write(fwdMsg);
-                writer.flush();
-            }
+    public void dispatch(Socket socket, String msg) {
+        ClientWriter sender = connectClients.get(socket.getPort());
+        if (sender == null) {
+            return;
         }
+        ChatCommand command = ChatCommand.parse(msg);
+        switch (command.getType()) {
+            case JOIN:
+                rooms.join(command.getRoom(), sender);
+                break;
+            case LEAVE:
+                rooms.leave(command.getRoom(), sender);
+                break;
+            case PUBLISH:
+                //只能在自己加入了的房间发言
+                if (rooms.isMember(command.getRoom(), sender)) {
+                    String fwdMsg = "客户端["+socket.getPort()+"]:"+command.getText();
+                    forwordMessage(sender, command.getRoom(), fwdMsg);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 转发消息给房间里除了发送者外的所有客户端
+     * 只是投递到每个客户端的信箱，不等它写完，发送者的耗时和接收方快慢无关
+     */
+    public void forwordMessage(ClientWriter sender, String room, String fwdMsg) {
+        long start = System.nanoTime();
+        //只编码一次，每个接收方写同一个数组
+        ByteBuffer frame = frameCodec.encode(charset.encode(ChatCommand.format(room, fwdMsg)));
+        rooms.forEachMember(room, writer -> {
+            if (writer != sender) {
+                writer.send(frame);
+            }
+        });
+        metrics.recordFanout(System.nanoTime() - start);
     }
     /**
      * 检查发的消息是否是客户端退出
@@ -90,7 +209,7 @@ public class ChatServer {
             while (true) {
                 //等待客户端连接
                 Socket socket = serverSocket.accept();
-                //todo 将线程放到线程池里去，也就是说最多10个用户
+                //todo 将线程放到线程池里去，FIXED_POOL模式最多10个用户，VIRTUAL_THREAD模式不限
                 executorService.execute(new ChatHandler(this,socket));
             }
         } catch (IOException e) {
@@ -101,6 +220,8 @@ public class ChatServer {
     }
 
     public static void main(String[] args) {
-        new ChatServer().start();
+        //java BIO_UseThreadPool.server.ChatServer [FIXED_POOL|VIRTUAL_THREAD]
+        ExecutorMode executorMode = args.length > 0 ? ExecutorMode.valueOf(args[0]) : ExecutorMode.FIXED_POOL;
+        new ChatServer(executorMode).start();
     }
 }
@@ -0,0 +1,154 @@
+package BIO_UseThreadPool.server;
+
+import common.metrics.ServerMetrics;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @des 往一个客户端写消息：发送者只把消息放进这个客户端的信箱，由单独的写任务慢慢写
+ * 这样某个客户端的TCP窗口满了，也只会堵住它自己的写任务，不会堵住发消息的人
+ * 写任务只在信箱有消息时才占用线程，写空了就退出，同一时刻最多只有一个写任务
+ */
+public class ClientWriter {
+    /**
+     * 信箱满了怎么办
+     */
+    public enum OverflowPolicy {
+        //丢掉最老的消息，给新消息腾位置
+        DROP_OLDEST,
+        //这个客户端太慢了，直接断开
+        DISCONNECT,
+        //发送者等着，直到信箱有空位
+        BLOCK
+    }
+
+    private static final int BUFFER = 8192;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final BlockingQueue<ByteBuffer> mailbox;
+    private final OverflowPolicy overflowPolicy;
+    private final Executor executor;
+    //是否已经有写任务在跑了
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final ServerMetrics metrics;
+    private volatile boolean closed;
+
+    public ClientWriter(Socket socket, int capacity, OverflowPolicy overflowPolicy, Executor executor,
+                        ServerMetrics metrics) throws IOException {
+        this.socket = socket;
+        //一次把信箱里的消息都写进缓冲再flush，多条小消息合成一次系统调用
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER);
+        this.mailbox = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    public int getQueueSize() {
+        return mailbox.size();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * 投递一帧，frame是读模式的堆缓冲区，多个客户端共用，不会被修改
+     * 除了BLOCK策略，都不会阻塞调用者
+     */
+    public void send(ByteBuffer frame) {
+        if (closed) {
+            return;
+        }
+        if (!mailbox.offer(frame)) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    while (!mailbox.offer(frame)) {
+                        if (mailbox.poll() != null) {
+                            droppedMessages.incrementAndGet();
+                            metrics.messageEvicted();
+                        }
+                    }
+                    break;
+                case DISCONNECT:
+                    System.out.println("客户端["+socket.getPort()+"]接收太慢，断开连接");
+                    close();
+                    return;
+                case BLOCK:
+                    try {
+                        mailbox.put(frame);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        metrics.messageQueued();
+        schedule();
+    }
+
+    private void schedule() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * 写任务：把信箱写空再退出
+     */
+    private void drain() {
+        try {
+            ByteBuffer frame;
+            while (!closed && (frame = mailbox.poll()) != null) {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                metrics.bytesWritten(frame.remaining());
+                metrics.messageSent();
+                if (mailbox.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            close();
+        } finally {
+            scheduled.set(false);
+            //退出前又有新消息进来了，要再调度一次，不然这条消息就没人写了
+            if (!mailbox.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * 关闭socket，阻塞在readLine的handler线程会因此出错并移除这个客户端
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        int discarded = 0;
+        while (mailbox.poll() != null) {
+            discarded++;
+        }
+        metrics.messagesDiscarded(discarded);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
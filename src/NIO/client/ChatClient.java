@@ -82,7 +82,8 @@ public class ChatClient {
                 //服务端异常
                 close(selector);
             } else {
-                System.out.println(msg);
+                //服务器发来的每条消息自带\n
+                System.out.print(msg);
             }
         }
     }
@@ -105,7 +106,8 @@ public class ChatClient {
             return;
         }
         wBuffer.clear();
-        wBuffer.put(charset.encode(msg));
+        //服务器按行分帧，每条消息以\n结尾
+        wBuffer.put(charset.encode(msg + "\n"));
         wBuffer.flip();
         while (wBuffer.hasRemaining()) {
             client.write(wBuffer);
@@ -0,0 +1,625 @@
+package NIO.client;
+
+import common.codec.FrameDecoder;
+import common.codec.FrameTooLongException;
+import common.codec.LineCodec;
+import common.metrics.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @des 无界面的压测客户端：几个NIO线程撑起成千上万个连接，按设定的速率往大厅发消息，量服务器的转发能力
+ * 每条消息里带着它"应该"发出的时间（按速率排好的时刻，不是真正写出去的时刻），收到转发后用当前时间减掉，
+ * 服务器卡住时排队的延迟也会算进去，避免coordinated omission；所有连接都在同一个JVM里，nanoTime可以直接比较
+ * 消息格式是"LG <时间> xxxx...\n"，不管服务器在前面加什么前缀（客户端[端口]:、端口:），找到"LG "就能取出时间
+ * 可以把几种服务器依次作为子进程启动，跑同一个场景，最后打印一张对比表
+ */
+public class LoadGenerator {
+    private static final byte[] MARKER = "LG ".getBytes(StandardCharsets.US_ASCII);
+    //消息里的时间都相对于这个点，保证是正数
+    private static final long EPOCH = System.nanoTime();
+    //"LG " + 19位数字 + 空格 + 换行
+    private static final int MIN_MESSAGE_SIZE = 32;
+    //一个连接积压的待发数据超过这么多就丢消息，说明服务器读不过来
+    private static final int MAX_PENDING = 1 << 20;
+    //每个线程同时在握手的连接数，BIO服务器的accept队列只有50
+    private static final int MAX_CONNECTING = 32;
+    private static final long CONNECT_TIMEOUT_MILLIS = 30_000;
+    //停止发送以后再等这么久，让路上的消息到齐
+    private static final long DRAIN_MILLIS = 2000;
+
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int threads;
+    private final int publishers;
+    //所有发送者加起来每秒发多少条
+    private final double rate;
+    private final int messageSize;
+    private final long warmupMillis;
+    private final long durationMillis;
+
+    public LoadGenerator(InetSocketAddress address, int connections, int threads, int publishers,
+                         double rate, int messageSize, long warmupMillis, long durationMillis) {
+        if (connections < 2 || threads < 1 || publishers < 1 || publishers > connections || rate <= 0) {
+            throw new IllegalArgumentException("至少2个连接、1个线程、1个发送者，发送者不能比连接多，速率要大于0");
+        }
+        this.address = address;
+        this.connections = connections;
+        this.threads = Math.min(threads, connections);
+        this.publishers = publishers;
+        this.rate = rate;
+        this.messageSize = Math.max(MIN_MESSAGE_SIZE, messageSize);
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * 一次压测的结果
+     */
+    public static class Report {
+        private final String label;
+        private final int connections;
+        private final double targetRate;
+        private final double seconds;
+        private final long sent;
+        private final long dropped;
+        private final long received;
+        private final long expected;
+        private final int disconnected;
+        //纳秒
+        private final Histogram latency;
+
+        Report(String label, int connections, double targetRate, double seconds, long sent, long dropped,
+               long received, long expected, int disconnected, Histogram latency) {
+            this.label = label;
+            this.connections = connections;
+            this.targetRate = targetRate;
+            this.seconds = seconds;
+            this.sent = sent;
+            this.dropped = dropped;
+            this.received = received;
+            this.expected = expected;
+            this.disconnected = disconnected;
+            this.latency = latency;
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * 收到的转发占应该收到的比例，服务器丢消息或者来不及转发都会让它小于1
+         */
+        public double deliveryRatio() {
+            return expected == 0 ? 0 : (double) received / expected;
+        }
+
+        static String header() {
+            return String.format("%-40s %6s %9s %9s %11s %8s %8s %9s %9s %9s %9s %9s",
+                    "server", "conns", "target/s", "sent/s", "delivered/s", "ratio", "dropped",
+                    "p50(ms)", "p90(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+        }
+
+        String row() {
+            return String.format("%-40s %6d %9.0f %9.0f %11.0f %7.2f%% %8d %9.3f %9.3f %9.3f %9.3f %9.3f",
+                    label, connections, targetRate, sent / seconds, received / seconds, deliveryRatio() * 100,
+                    dropped, latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(90) / 1e6,
+                    latency.getValueAtPercentile(99) / 1e6, latency.getValueAtPercentile(99.9) / 1e6,
+                    latency.getMax() / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d conns, sent %d (%.0f/s, dropped %d), received %d of %d (%.2f%%), disconnected %d, latency %s",
+                    label, connections, sent, sent / seconds, dropped, received, expected, deliveryRatio() * 100,
+                    disconnected, latency.summary(1e6, "ms"));
+        }
+    }
+
+    /**
+     * 一个模拟的客户端
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final FrameDecoder decoder;
+        SelectionKey key;
+        //没写完的数据，写模式；null表示没有积压
+        ByteBuffer pending;
+
+        Connection(SocketChannel channel, FrameDecoder decoder) {
+            this.channel = channel;
+            this.decoder = decoder;
+        }
+    }
+
+    /**
+     * 压测的时间表，连接全部建好以后才定下来
+     */
+    private static class Schedule {
+        final long start;
+        final long measureStart;
+        final long measureEnd;
+        final long stop;
+
+        Schedule(long start, long warmupMillis, long durationMillis) {
+            this.start = start;
+            this.measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+            this.measureEnd = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            this.stop = measureEnd + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        }
+
+        boolean measured(long intended) {
+            return intended >= measureStart && intended < measureEnd;
+        }
+    }
+
+    /**
+     * 一个线程一个Selector，管自己那部分连接；既发也收，线程之间不共享任何东西
+     */
+    private class Worker extends Thread {
+        private final int connectionCount;
+        private final int publisherCount;
+        private final CountDownLatch connected;
+        private final CountDownLatch go;
+        private final List<Connection> all = new ArrayList<>();
+        private final ByteBuffer rBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final ByteBuffer wBuffer;
+        private final byte[] message;
+        private final Histogram latency = new Histogram();
+        private Selector selector;
+        private volatile Schedule schedule;
+        private volatile IOException failure;
+        private long sent;
+        private long dropped;
+        private long received;
+        private int disconnected;
+
+        Worker(int index, int connectionCount, int publisherCount, CountDownLatch connected, CountDownLatch go) {
+            super("load-worker-" + index);
+            setDaemon(true);
+            this.connectionCount = connectionCount;
+            this.publisherCount = publisherCount;
+            this.connected = connected;
+            this.go = go;
+            this.message = new byte[messageSize];
+            Arrays.fill(message, (byte) 'x');
+            System.arraycopy(MARKER, 0, message, 0, MARKER.length);
+            message[messageSize - 1] = '\n';
+            this.wBuffer = ByteBuffer.allocateDirect(messageSize);
+        }
+
+        @Override
+        public void run() {
+            try {
+                try {
+                    selector = Selector.open();
+                    connectAll();
+                } finally {
+                    connected.countDown();
+                }
+                go.await();
+                //有别的线程建连接失败时不会给时间表，直接退出
+                if (schedule != null) {
+                    loop(schedule);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeAll();
+            }
+        }
+
+        /**
+         * 分批建连接，同时在握手的不超过MAX_CONNECTING个，免得把服务器的accept队列挤爆
+         */
+        private void connectAll() throws IOException {
+            LineCodec codec = new LineCodec(Math.max(messageSize * 2, 8192));
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            int opened = 0;
+            int connecting = 0;
+            int done = 0;
+            while (done < connectionCount) {
+                while (connecting < MAX_CONNECTING && opened < connectionCount) {
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Connection connection = new Connection(channel, codec.newDecoder());
+                    all.add(connection);
+                    connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                    if (channel.connect(address)) {
+                        connection.key.interestOps(SelectionKey.OP_READ);
+                        done++;
+                    } else {
+                        connecting++;
+                    }
+                    opened++;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("连接" + address + "超时，已建立" + done + "/" + connectionCount);
+                }
+                selector.select(100);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isConnectable()) {
+                        Connection connection = (Connection) key.attachment();
+                        connection.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        connecting--;
+                        done++;
+                    }
+                }
+            }
+        }
+
+        private void loop(Schedule schedule) throws IOException {
+            //发送者是前publisherCount个连接，按时间表轮流发
+            long interval = publisherCount == 0 ? 0 : (long) (1e9 / (rate * publisherCount / publishers));
+            long next = schedule.start;
+            int cursor = 0;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= schedule.stop) {
+                    return;
+                }
+                if (interval > 0) {
+                    //落后了就一口气补上，补发的消息带的还是原定时间
+                    while (next <= now && next < schedule.measureEnd) {
+                        publish(all.get(cursor), next, schedule);
+                        cursor = (cursor + 1) % publisherCount;
+                        next += interval;
+                    }
+                }
+                long wakeAt = interval > 0 && next < schedule.measureEnd ? next : schedule.stop;
+                long waitMillis = TimeUnit.NANOSECONDS.toMillis(wakeAt - now);
+                int ready = waitMillis > 0 ? selector.select(waitMillis) : selector.selectNow();
+                if (ready == 0) {
+                    continue;
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection, schedule);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (IOException e) {
+                        disconnect(connection);
+                    }
+                }
+            }
+        }
+
+        private void publish(Connection connection, long intended, Schedule schedule) {
+            if (!connection.key.isValid()) {
+                return;
+            }
+            boolean measured = schedule.measured(intended);
+            writeTimestamp(intended - EPOCH);
+            wBuffer.clear();
+            wBuffer.put(message).flip();
+            try {
+                if (connection.pending == null) {
+                    connection.channel.write(wBuffer);
+                    if (!wBuffer.hasRemaining()) {
+                        if (measured) {
+                            sent++;
+                        }
+                        return;
+                    }
+                    connection.pending = ByteBuffer.allocate(Math.max(wBuffer.remaining(), 16 * 1024));
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } else if (connection.pending.position() + wBuffer.remaining() > MAX_PENDING) {
+                    if (measured) {
+                        dropped++;
+                    }
+                    return;
+                }
+                connection.pending = ensureCapacity(connection.pending, wBuffer.remaining());
+                connection.pending.put(wBuffer);
+                if (measured) {
+                    sent++;
+                }
+            } catch (IOException e) {
+                disconnect(connection);
+            }
+        }
+
+        /**
+         * 时间写在"LG "后面，定长19位，前面补0
+         */
+        private void writeTimestamp(long value) {
+            for (int i = MARKER.length + 18; i >= MARKER.length; i--) {
+                message[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            message[MARKER.length + 19] = ' ';
+        }
+
+        private ByteBuffer ensureCapacity(ByteBuffer buffer, int more) {
+            if (buffer.remaining() >= more) {
+                return buffer;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + more));
+            buffer.flip();
+            bigger.put(buffer);
+            return bigger;
+        }
+
+        private void flush(Connection connection) throws IOException {
+            ByteBuffer pending = connection.pending;
+            pending.flip();
+            connection.channel.write(pending);
+            if (pending.hasRemaining()) {
+                pending.compact();
+                return;
+            }
+            connection.pending = null;
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void read(Connection connection, Schedule schedule) throws IOException {
+            rBuffer.clear();
+            int n = connection.channel.read(rBuffer);
+            if (n < 0) {
+                disconnect(connection);
+                return;
+            }
+            long now = System.nanoTime();
+            rBuffer.flip();
+            ByteBuffer frame;
+            try {
+                while ((frame = connection.decoder.decode(rBuffer)) != null) {
+                    long intended = parseTimestamp(frame);
+                    if (intended >= 0 && schedule.measured(EPOCH + intended)) {
+                        latency.record(now - EPOCH - intended);
+                        received++;
+                    }
+                }
+            } catch (FrameTooLongException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void disconnect(Connection connection) {
+            if (connection.key.isValid()) {
+                disconnected++;
+                connection.key.cancel();
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                //忽略
+            }
+        }
+
+        private void closeAll() {
+            for (Connection connection : all) {
+                try {
+                    connection.channel.close();
+                } catch (IOException e) {
+                    //忽略
+                }
+            }
+            try {
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (IOException e) {
+                //忽略
+            }
+        }
+    }
+
+    /**
+     * 在一帧里找"LG "，取出后面的19位数字；不是压测消息返回-1
+     */
+    static long parseTimestamp(ByteBuffer frame) {
+        int limit = frame.limit() - MARKER.length - 19;
+        outer:
+        for (int i = frame.position(); i <= limit; i++) {
+            for (int j = 0; j < MARKER.length; j++) {
+                if (frame.get(i + j) != MARKER[j]) {
+                    continue outer;
+                }
+            }
+            long value = 0;
+            for (int k = i + MARKER.length; k < i + MARKER.length + 19; k++) {
+                byte b = frame.get(k);
+                if (b < '0' || b > '9') {
+                    return -1;
+                }
+                value = value * 10 + (b - '0');
+            }
+            return value;
+        }
+        return -1;
+    }
+
+    /**
+     * 建好所有连接，按时间表发消息，结束后汇总
+     */
+    public Report run(String label) throws IOException, InterruptedException {
+        CountDownLatch connected = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            //连接和发送者都尽量平均分到每个线程
+            int connectionCount = connections / threads + (i < connections % threads ? 1 : 0);
+            int publisherCount = publishers / threads + (i < publishers % threads ? 1 : 0);
+            workers[i] = new Worker(i, connectionCount, Math.min(publisherCount, connectionCount), connected, go);
+            workers[i].start();
+        }
+        connected.await();
+        for (Worker worker : workers) {
+            if (worker.failure != null) {
+                go.countDown();
+                throw worker.failure;
+            }
+        }
+        //服务器登记新连接可能是异步的，稍等一下再开始发
+        Schedule schedule = new Schedule(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200),
+                warmupMillis, durationMillis);
+        for (Worker worker : workers) {
+            worker.schedule = schedule;
+        }
+        go.countDown();
+        Histogram latency = new Histogram();
+        long sent = 0;
+        long dropped = 0;
+        long received = 0;
+        int disconnected = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            if (worker.failure != null) {
+                throw worker.failure;
+            }
+            latency.add(worker.latency);
+            sent += worker.sent;
+            dropped += worker.dropped;
+            received += worker.received;
+            disconnected += worker.disconnected;
+        }
+        //大厅里每条消息要转发给除了发送者以外的所有人
+        long expected = sent * (connections - 1);
+        return new Report(label, connections, rate, durationMillis / 1000.0, sent, dropped, received, expected,
+                disconnected, latency);
+    }
+
+    /**
+     * 把一种服务器作为子进程启动，格式是"主类:端口[:参数...]"，比如NIO.server.ChatServer:7777:4
+     */
+    private static class ServerProcess implements AutoCloseable {
+        final String label;
+        final int port;
+        final Process process;
+
+        ServerProcess(String spec) throws IOException, InterruptedException {
+            String[] parts = spec.split(":");
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("服务器格式是 主类:端口[:参数...]，" + spec + "不对");
+            }
+            String mainClass = parts[0];
+            this.port = Integer.parseInt(parts[1]);
+            this.label = mainClass.substring(0, Math.max(0, mainClass.lastIndexOf('.')))
+                    + (parts.length > 2 ? "(" + String.join(",", Arrays.copyOfRange(parts, 2, parts.length)) + ")" : "");
+            if (isListening(port)) {
+                throw new IOException(port + "端口已经被占用，先停掉上一个服务器");
+            }
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            //common.chat.ChatLauncher从这里拿端口，参数里只放传输层和线程数；其他服务器的端口是写死的，用不上
+            command.add("-Dchat.port=" + port);
+            command.add(mainClass);
+            command.addAll(Arrays.asList(parts).subList(2, parts.length));
+            //服务器每条消息都会打印，丢掉，不然压测的是控制台；stdin保持打开，AIO服务器靠读它阻塞主线程
+            this.process = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!isListening(port)) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    close();
+                    throw new IOException(label + "没有在" + port + "端口启动起来");
+                }
+                Thread.sleep(100);
+            }
+        }
+
+        private static boolean isListening(int port) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 500);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            //不用process.destroy()，它会先关掉stdin，AIO服务器读到EOF会再accept一次然后报错
+            process.toHandle().destroy();
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly().waitFor();
+                }
+            } catch (InterruptedException e) {
+                //等不了就直接杀掉，中断标记留给调用方
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static LoadGenerator configure(InetSocketAddress address) {
+        int connections = Integer.getInteger("load.connections", 500);
+        return new LoadGenerator(address, connections,
+                Integer.getInteger("load.threads", 4),
+                Integer.getInteger("load.publishers", connections),
+                Double.parseDouble(System.getProperty("load.rate", "100")),
+                Integer.getInteger("load.size", 128),
+                Long.getLong("load.warmup", 3000),
+                Long.getLong("load.duration", 10_000));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        //压已经在跑的服务器：java -Dload.target=127.0.0.1:7777 NIO.client.LoadGenerator
+        //依次启动几种服务器对比：java NIO.client.LoadGenerator [主类:端口[:参数...] ...]，不传就是全部四种
+        //场景参数：-Dload.connections=500 -Dload.threads=4 -Dload.publishers=连接数 -Dload.rate=100(条/秒)
+        //         -Dload.size=128(字节) -Dload.warmup=3000 -Dload.duration=10000(毫秒)
+        List<Report> reports = new ArrayList<>();
+        String target = System.getProperty("load.target");
+        if (target != null) {
+            int colon = target.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(target.substring(0, colon),
+                    Integer.parseInt(target.substring(colon + 1)));
+            reports.add(configure(address).run(target));
+        } else {
+            List<String> specs = args.length > 0 ? Arrays.asList(args) : Arrays.asList(
+                    "BIO.server.ChatServer:8888",
+                    //FIXED_POOL模式只有10个handler线程，撑不住几百个连接
+                    "BIO_UseThreadPool.server.ChatServer:8888:VIRTUAL_THREAD",
+                    "NIO.server.ChatServer:7777:" + Runtime.getRuntime().availableProcessors(),
+                    "AIO.chatroom.ChatServer:7777");
+            for (String spec : specs) {
+                try (ServerProcess server = new ServerProcess(spec)) {
+                    System.out.println("压测" + server.label + "...");
+                    Report report = configure(new InetSocketAddress("127.0.0.1", server.port)).run(server.label);
+                    System.out.println(report);
+                    reports.add(report);
+                } catch (IOException e) {
+                    System.out.println(spec + "压测失败: " + e.getMessage());
+                }
+            }
+        }
+        System.out.println(Report.header());
+        for (Report report : reports) {
+            System.out.println(report.row());
+        }
+    }
+}
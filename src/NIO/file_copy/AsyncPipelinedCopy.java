@@ -0,0 +1,256 @@
+package NIO.file_copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @des 用AsynchronousFileChannel异步复制，读写都在回调里推进，写法和AIO.chatroom.ChatServer一样
+ * 一共queueDepth个直接缓冲区，每个缓冲区各自循环：领一段 -> 异步读 -> 异步写 -> 再领下一段
+ * 各个缓冲区的进度是错开的，所以同一时刻总有一些在读、一些在写，读写可以在设备上重叠
+ */
+public class AsyncPipelinedCopy implements FileCopyRunner, AutoCloseable {
+    private static final Set<StandardOpenOption> READ_OPTIONS = EnumSet.of(StandardOpenOption.READ);
+    private static final Set<StandardOpenOption> WRITE_OPTIONS = EnumSet.of(StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+    private final int queueDepth;
+    private final int bufferSize;
+    //处理回调的线程池，两个channel共用
+    private final ExecutorService executorService;
+    private final ReadHandler readHandler = new ReadHandler();
+    private final WriteHandler writeHandler = new WriteHandler();
+
+    public AsyncPipelinedCopy(int queueDepth, int bufferSize, int threadPoolSize) {
+        if (queueDepth <= 0 || bufferSize <= 0 || threadPoolSize <= 0) {
+            throw new IllegalArgumentException("queueDepth、bufferSize、threadPoolSize必须大于0");
+        }
+        this.queueDepth = queueDepth;
+        this.bufferSize = bufferSize;
+        AtomicInteger index = new AtomicInteger();
+        this.executorService = Executors.newFixedThreadPool(threadPoolSize, r -> {
+            Thread thread = new Thread(r, "async-copy-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public AsyncPipelinedCopy(int queueDepth, int bufferSize) {
+        this(queueDepth, bufferSize, 2);
+    }
+
+    /**
+     * 开始复制，马上返回；全部写完并关闭文件后future完成，值是复制的字节数
+     */
+    public CompletableFuture<Long> copyAsync(File source, File target) {
+        Transfer transfer;
+        try {
+            transfer = new Transfer(source, target);
+        } catch (IOException e) {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        transfer.start();
+        return transfer.future;
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        try {
+            copyAsync(source, target).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 一次复制的状态
+     */
+    private class Transfer {
+        private final AsynchronousFileChannel in;
+        private final AsynchronousFileChannel out;
+        private final long size;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        //下一段从哪里开始，各个缓冲区来这里领
+        private final AtomicLong nextPosition = new AtomicLong();
+        private final AtomicLong copied = new AtomicLong();
+        //还在干活的缓冲区个数，最后一个停下的负责关文件、完成future
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Transfer(File source, File target) throws IOException {
+            this.in = AsynchronousFileChannel.open(source.toPath(), READ_OPTIONS, executorService);
+            try {
+                this.out = AsynchronousFileChannel.open(target.toPath(), WRITE_OPTIONS, executorService);
+                this.size = in.size();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        void start() {
+            int slots = (int) Math.max(1, Math.min(queueDepth, (size + bufferSize - 1) / bufferSize));
+            active.set(slots);
+            for (int i = 0; i < slots; i++) {
+                new Slot(this, ByteBuffer.allocateDirect(bufferSize)).next();
+            }
+        }
+
+        void fail(Throwable exc) {
+            failure.compareAndSet(null, exc);
+        }
+
+        /**
+         * 一个缓冲区停下了，等所有缓冲区都停下，没有读写在进行了才能关文件
+         */
+        void slotFinished() {
+            if (active.decrementAndGet() != 0) {
+                return;
+            }
+            try {
+                in.close();
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            Throwable exc = failure.get();
+            if (exc != null) {
+                future.completeExceptionally(exc);
+            } else {
+                future.complete(copied.get());
+            }
+        }
+    }
+
+    /**
+     * 环里的一个缓冲区，同一时刻只有一个读或者写在用它
+     */
+    private class Slot {
+        private final Transfer transfer;
+        private final ByteBuffer buffer;
+        //当前这一段的起点和长度
+        private long position;
+        private int count;
+
+        Slot(Transfer transfer, ByteBuffer buffer) {
+            this.transfer = transfer;
+            this.buffer = buffer;
+        }
+
+        /**
+         * 领下一段去读，没有了或者别的缓冲区出错了就停下
+         */
+        void next() {
+            if (transfer.failure.get() != null) {
+                transfer.slotFinished();
+                return;
+            }
+            position = transfer.nextPosition.getAndAdd(bufferSize);
+            if (position >= transfer.size) {
+                transfer.slotFinished();
+                return;
+            }
+            count = (int) Math.min(bufferSize, transfer.size - position);
+            buffer.clear().limit(count);
+            read();
+        }
+
+        void read() {
+            try {
+                transfer.in.read(buffer, position + buffer.position(), this, readHandler);
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        void write() {
+            try {
+                transfer.out.write(buffer, position + buffer.position(), this, writeHandler);
+            } catch (RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        void failed(Throwable exc) {
+            transfer.fail(exc);
+            transfer.slotFinished();
+        }
+    }
+
+    /**
+     * 读完成的回调，一次不一定读满这一段，读满了才开始写
+     */
+    private class ReadHandler implements CompletionHandler<Integer, Slot> {
+        @Override
+        public void completed(Integer result, Slot slot) {
+            if (result < 0) {
+                //开始复制以后源文件被截短了
+                slot.failed(new IOException("源文件在复制过程中被修改，位置" + (slot.position + slot.buffer.position()) + "读不到数据"));
+                return;
+            }
+            if (slot.buffer.hasRemaining()) {
+                slot.read();
+                return;
+            }
+            slot.buffer.flip();
+            slot.write();
+        }
+
+        @Override
+        public void failed(Throwable exc, Slot slot) {
+            slot.failed(exc);
+        }
+    }
+
+    /**
+     * 写完成的回调，没写完接着写，写完了这个缓冲区去领下一段
+     */
+    private class WriteHandler implements CompletionHandler<Integer, Slot> {
+        @Override
+        public void completed(Integer result, Slot slot) {
+            if (slot.buffer.hasRemaining()) {
+                slot.write();
+                return;
+            }
+            slot.transfer.copied.addAndGet(slot.count);
+            slot.next();
+        }
+
+        @Override
+        public void failed(Throwable exc, Slot slot) {
+            slot.failed(exc);
+        }
+    }
+
+    @Override
+    public void close() {
+        executorService.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "asyncPipelinedCopy(" + queueDepth + "x" + bufferSize + ")";
+    }
+}
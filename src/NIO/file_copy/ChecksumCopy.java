@@ -0,0 +1,207 @@
+package NIO.file_copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * @des 边复制边算校验和：读进来的缓冲区先算校验和再写出去，不用复制完再把源文件读一遍
+ * 文件按chunkSize分块，每块一个校验和，组成清单；校验目标文件时也按块比对，哪块坏了一目了然
+ * 默认用CRC32C，JDK里有CPU指令加速，和nioBufferCopy比几乎没有额外开销
+ * 默认只在复制的同时算一遍，再检查目标文件大小；setVerify(true)会把目标文件整个再读一遍，多一倍的读
+ */
+public class ChecksumCopy implements FileCopyRunner {
+    private final int bufferSize;
+    private final long chunkSize;
+    private final Supplier<Checksum> checksumFactory;
+    private final String algorithm;
+    //复制完是否把目标文件读一遍核对，要多读一遍整个文件，默认不开
+    private boolean verify;
+    //是否在目标文件旁边写一个.crc清单
+    private boolean writeManifest;
+
+    public ChecksumCopy(int bufferSize, long chunkSize, Supplier<Checksum> checksumFactory, String algorithm) {
+        if (bufferSize <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("bufferSize和chunkSize必须大于0");
+        }
+        this.bufferSize = bufferSize;
+        this.chunkSize = chunkSize;
+        this.checksumFactory = checksumFactory;
+        this.algorithm = algorithm;
+    }
+
+    public ChecksumCopy(int bufferSize) {
+        this(bufferSize, 4L << 20, CRC32C::new, "CRC32C");
+    }
+
+    /**
+     * 复制完把目标文件按块重新读一遍和清单比对，能发现写坏的数据，代价是多读一遍整个文件
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public void setWriteManifest(boolean writeManifest) {
+        this.writeManifest = writeManifest;
+    }
+
+    /**
+     * 清单文件的位置：目标文件名后面加.crc
+     */
+    public static Path manifestPath(File target) {
+        return new File(target.getPath() + ".crc").toPath();
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        try {
+            Manifest manifest = copy(source, target);
+            if (verify) {
+                manifest.verify(target);
+            }
+            if (writeManifest) {
+                manifest.write(manifestPath(target));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 复制并返回每块的校验和
+     */
+    public Manifest copy(File source, File target) throws IOException {
+        try (FileChannel fin = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = fin.size();
+            Manifest manifest = new Manifest(algorithm, chunkSize, size);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            Checksum checksum = checksumFactory.get();
+            long position = 0;
+            while (position < size) {
+                //一次读不跨块，块的校验和才不会混在一起
+                long chunkRemaining = chunkSize - position % chunkSize;
+                buffer.clear().limit((int) Math.min(buffer.capacity(), chunkRemaining));
+                int read = fin.read(buffer);
+                if (read < 0) {
+                    throw new IOException(source + "在复制过程中被修改，位置" + position + "读不到数据");
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    fout.write(buffer);
+                }
+                position += read;
+                if (position % chunkSize == 0 || position == size) {
+                    manifest.checksums.add(checksum.getValue());
+                    checksum.reset();
+                }
+            }
+            //不重读也能做的检查：写进去的大小对不对
+            if (fout.size() != size) {
+                throw new IOException(target + "大小不对: " + fout.size() + " != " + size);
+            }
+            return manifest;
+        }
+    }
+
+    /**
+     * 每块校验和的清单
+     */
+    public class Manifest {
+        private final String algorithm;
+        private final long chunkSize;
+        private final long size;
+        private final List<Long> checksums = new ArrayList<>();
+
+        Manifest(String algorithm, long chunkSize, long size) {
+            this.algorithm = algorithm;
+            this.chunkSize = chunkSize;
+            this.size = size;
+        }
+
+        public List<Long> getChecksums() {
+            return checksums;
+        }
+
+        /**
+         * 把文件按块读一遍，和清单比对；大小不对或者有块不一样就抛异常
+         * 刚写完的文件一般还在页缓存里，这一遍读不怎么碰磁盘
+         */
+        public void verify(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() != size) {
+                    throw new IOException(file + "大小不对: " + channel.size() + " != " + size);
+                }
+                ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+                Checksum checksum = checksumFactory.get();
+                for (int chunk = 0; chunk < checksums.size(); chunk++) {
+                    long start = chunk * chunkSize;
+                    long end = Math.min(start + chunkSize, size);
+                    for (long position = start; position < end; ) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                        int read = channel.read(buffer, position);
+                        if (read < 0) {
+                            throw new IOException(file + "在校验过程中被修改");
+                        }
+                        buffer.flip();
+                        checksum.update(buffer);
+                        position += read;
+                    }
+                    if (checksum.getValue() != checksums.get(chunk)) {
+                        throw new IOException(file + "第" + chunk + "块校验失败，位置" + start + "-" + end);
+                    }
+                    checksum.reset();
+                }
+            }
+        }
+
+        /**
+         * 第一行是算法、块大小、文件大小，之后每行是块号、起点、长度、校验和
+         */
+        public void write(Path path) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            sb.append(algorithm).append(' ').append(chunkSize).append(' ').append(size).append('\n');
+            for (int chunk = 0; chunk < checksums.size(); chunk++) {
+                long start = chunk * chunkSize;
+                sb.append(chunk).append(' ').append(start).append(' ').append(Math.min(chunkSize, size - start))
+                        .append(' ').append(String.format("%08x", checksums.get(chunk))).append('\n');
+            }
+            Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 读回写出去的清单，要用同样的块大小和算法
+     */
+    public Manifest readManifest(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        String[] header = lines.get(0).split(" ");
+        if (!header[0].equals(algorithm) || Long.parseLong(header[1]) != chunkSize) {
+            throw new IOException(path + "的算法或块大小和当前设置不一致: " + lines.get(0));
+        }
+        Manifest manifest = new Manifest(header[0], chunkSize, Long.parseLong(header[2]));
+        for (int i = 1; i < lines.size(); i++) {
+            manifest.checksums.add(Long.parseLong(lines.get(i).split(" ")[3], 16));
+        }
+        return manifest;
+    }
+
+    @Override
+    public String toString() {
+        return "checksumCopy(" + bufferSize + "," + algorithm + (verify ? ",verify)" : ")");
+    }
+}
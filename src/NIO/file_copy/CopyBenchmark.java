@@ -0,0 +1,365 @@
+package NIO.file_copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @des 文件复制方式的benchmark：先预热再测量，用nanoTime计时，测试文件自动生成
+ * 参数都用系统属性传，例如：
+ * java -Dcopy.sizes=4K,1M,64M,2G -Dcopy.buffers=8K,64K,1M -Dcopy.runners=nioBufferCopy,nioTransferCopy NIO.file_copy.CopyBenchmark
+ * copy.sizes      测试文件大小，默认4K,1M,64M
+ * copy.buffers    缓冲区大小，只对用缓冲区的复制方式有效，默认8K,64K,1M
+ * copy.runners    只跑这几种，默认全部
+ * copy.warmup     预热次数，默认2
+ * copy.iterations 测量次数，默认5
+ * copy.dir        测试文件放在哪，默认系统临时目录
+ * copy.window     mappedBufferCopy每次映射的窗口大小，默认64M
+ * copy.depth      asyncPipelinedCopy同时在读写的缓冲区个数，默认8
+ * copy.cache      页缓存场景，warm是文件已经在页缓存里，cold是每次复制前清空页缓存（Linux，要root），默认warm
+ * copy.chunk      parallelChunkCopy的块大小，默认16M
+ * copy.threads    parallelChunkCopy的线程数，默认CPU核数
+ * 每一行除了耗时和吞吐量，还有测量期间的GC次数、GC耗时和平均每次复制在堆上分配的字节数
+ */
+public class CopyBenchmark {
+
+    /**
+     * 根据参数创建一个复制方式
+     */
+    public interface RunnerFactory {
+        FileCopyRunner create(int bufferSize, boolean direct);
+    }
+
+    /**
+     * 参加对比的一种复制方式
+     */
+    static class Candidate {
+        final String name;
+        //是否关心缓冲区大小
+        final boolean buffered;
+        //是否可以选择堆上还是直接缓冲区
+        final boolean directOption;
+        //超过这个大小的文件就不测了，太慢
+        final long maxFileSize;
+        final RunnerFactory factory;
+
+        Candidate(String name, boolean buffered, boolean directOption, long maxFileSize, RunnerFactory factory) {
+            this.name = name;
+            this.buffered = buffered;
+            this.directOption = directOption;
+            this.maxFileSize = maxFileSize;
+            this.factory = factory;
+        }
+    }
+
+    private static final List<Candidate> CANDIDATES = new ArrayList<>();
+
+    static {
+        register("noBufferStreamCopy", false, false, 16L << 20, (bufferSize, direct) -> new FileCopyDemo.NoBufferStreamCopy());
+        register("bufferedStreamCopy", true, false, Long.MAX_VALUE, (bufferSize, direct) -> new FileCopyDemo.BufferedStreamCopy(bufferSize));
+        register("nioBufferCopy", true, true, Long.MAX_VALUE, FileCopyDemo.NioBufferCopy::new);
+        register("nioTransferCopy", false, false, Long.MAX_VALUE, (bufferSize, direct) -> new FileCopyDemo.NioTransferCopy());
+        register("mappedBufferCopy", false, false, Long.MAX_VALUE, (bufferSize, direct) -> new FileCopyDemo.MappedBufferCopy(
+                parseSize(System.getProperty("copy.window", "64M"))));
+        register("asyncPipelinedCopy", true, false, Long.MAX_VALUE, (bufferSize, direct) -> new AsyncPipelinedCopy(
+                Integer.getInteger("copy.depth", 8), bufferSize));
+        register("checksumCopy", true, false, Long.MAX_VALUE, (bufferSize, direct) -> new ChecksumCopy(bufferSize));
+        register("checksumVerifyCopy", true, false, Long.MAX_VALUE, (bufferSize, direct) -> {
+            ChecksumCopy runner = new ChecksumCopy(bufferSize);
+            runner.setVerify(true);
+            return runner;
+        });
+        register("directIoCopy", true, false, Long.MAX_VALUE, (bufferSize, direct) -> new DirectIoCopy(bufferSize));
+        register("parallelChunkCopy", false, false, Long.MAX_VALUE, (bufferSize, direct) -> new ParallelChunkCopy(
+                parseSize(System.getProperty("copy.chunk", "16M")),
+                Integer.getInteger("copy.threads", Runtime.getRuntime().availableProcessors())));
+    }
+
+    static void register(String name, boolean buffered, boolean directOption, long maxFileSize, RunnerFactory factory) {
+        CANDIDATES.add(new Candidate(name, buffered, directOption, maxFileSize, factory));
+    }
+
+    /**
+     * 一组测量结果
+     */
+    public static class Result {
+        final long bytes;
+        final long[] nanos;
+        final long gcCount;
+        final long gcMillis;
+        //平均每次复制分配的堆内存，-1表示JVM不支持统计
+        final long allocatedPerOp;
+
+        Result(long bytes, long[] nanos, long gcCount, long gcMillis, long allocatedPerOp) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+            this.allocatedPerOp = allocatedPerOp;
+        }
+
+        public double averageMillis() {
+            return Arrays.stream(nanos).average().orElse(0) / 1e6;
+        }
+
+        /**
+         * 吞吐量 MB/s
+         */
+        public double throughput() {
+            return bytes / (averageMillis() / 1000) / (1 << 20);
+        }
+
+        /**
+         * 吞吐量的标准差 MB/s
+         */
+        public double throughputError() {
+            double mean = throughput();
+            double sum = 0;
+            for (long nano : nanos) {
+                double t = bytes / (nano / 1e9) / (1 << 20);
+                sum += (t - mean) * (t - mean);
+            }
+            return nanos.length > 1 ? Math.sqrt(sum / (nanos.length - 1)) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3f ms/op, %.1f ± %.1f MB/s, gc=%d(%d ms), alloc=%s/op",
+                    averageMillis(), throughput(), throughputError(), gcCount, gcMillis, formatSize(allocatedPerOp));
+        }
+    }
+
+    /**
+     * 先预热warmup次，再测量iterations次；每次复制前删掉目标文件，复制完检查大小
+     */
+    public static Result measure(FileCopyRunner runner, File source, File target, int warmup, int iterations) {
+        return measure(runner, source, target, warmup, iterations, null);
+    }
+
+    /**
+     * @param beforeEach 每次复制前做的准备，比如清空页缓存，不计入耗时，可以为null
+     */
+    public static Result measure(FileCopyRunner runner, File source, File target, int warmup, int iterations,
+                                 Runnable beforeEach) {
+        for (int i = 0; i < warmup; i++) {
+            copyOnce(runner, source, target, beforeEach);
+        }
+        long[] nanos = new long[iterations];
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            nanos[i] = copyOnce(runner, source, target, beforeEach);
+        }
+        long allocatedAfter = allocatedBytes();
+        return new Result(source.length(), nanos, gcCount() - gcCount, gcMillis() - gcMillis,
+                allocated < 0 ? -1 : (allocatedAfter - allocated) / iterations);
+    }
+
+    private static long copyOnce(FileCopyRunner runner, File source, File target, Runnable beforeEach) {
+        target.delete();
+        if (beforeEach != null) {
+            beforeEach.run();
+        }
+        long start = System.nanoTime();
+        TracedCopy.copyFile(runner, source, target);
+        long elapsed = System.nanoTime() - start;
+        if (target.length() != source.length()) {
+            throw new IllegalStateException(runner + "复制结果不对: " + target.length() + " != " + source.length());
+        }
+        return elapsed;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * 所有线程一共在堆上分配了多少字节，HotSpot才支持
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : hotspot.getThreadAllocatedBytes(hotspot.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    /**
+     * 把脏页刷到磁盘再清空页缓存，只有Linux的root能做
+     */
+    static boolean dropCaches() {
+        try {
+            Process sync = new ProcessBuilder("sync").inheritIO().start();
+            sync.waitFor();
+            Files.write(new File("/proc/sys/vm/drop_caches").toPath(), "3".getBytes());
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 生成指定大小的随机内容文件，已经存在且大小一样就直接用
+     */
+    static File fixture(File dir, long size) throws IOException {
+        File file = new File(dir, "copy-fixture-" + formatSize(size) + ".bin");
+        if (file.exists() && file.length() == size) {
+            return file;
+        }
+        Random random = new Random(size);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            channel.truncate(0);
+            long written = 0;
+            while (written < size) {
+                random.nextBytes(buffer.array());
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - written));
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 4K、64M、2G这样的写法转成字节数
+     */
+    static long parseSize(String text) {
+        text = text.trim().toUpperCase();
+        long unit = 1;
+        char last = text.charAt(text.length() - 1);
+        if (last == 'K') {
+            unit = 1L << 10;
+        } else if (last == 'M') {
+            unit = 1L << 20;
+        } else if (last == 'G') {
+            unit = 1L << 30;
+        }
+        if (unit != 1) {
+            text = text.substring(0, text.length() - 1);
+        }
+        return Long.parseLong(text) * unit;
+    }
+
+    static String formatSize(long size) {
+        if (size < 0) {
+            return "n/a";
+        }
+        if (size >= 1L << 30 && size % (1L << 30) == 0) {
+            return (size >> 30) + "G";
+        }
+        if (size >= 1L << 20 && size % (1L << 20) == 0) {
+            return (size >> 20) + "M";
+        }
+        if (size >= 1L << 10 && size % (1L << 10) == 0) {
+            return (size >> 10) + "K";
+        }
+        return String.valueOf(size);
+    }
+
+    private static long[] parseSizes(String text) {
+        return Arrays.stream(text.split(",")).mapToLong(CopyBenchmark::parseSize).toArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        long[] sizes = parseSizes(System.getProperty("copy.sizes", "4K,1M,64M"));
+        long[] bufferSizes = parseSizes(System.getProperty("copy.buffers", "8K,64K,1M"));
+        String runnerFilter = System.getProperty("copy.runners");
+        List<String> selected = runnerFilter == null ? null : Arrays.asList(runnerFilter.split(","));
+        int warmup = Integer.getInteger("copy.warmup", 2);
+        int iterations = Integer.getInteger("copy.iterations", 5);
+        List<String> caches = new ArrayList<>(Arrays.asList(System.getProperty("copy.cache", "warm").split(",")));
+        if (caches.contains("cold") && !dropCaches()) {
+            System.out.println("清空页缓存失败（需要Linux和root权限），跳过cold场景");
+            caches.remove("cold");
+        }
+        String dirName = System.getProperty("copy.dir");
+        File dir = dirName != null ? new File(dirName) : Files.createTempDirectory("easyio-copy").toFile();
+        dir.mkdirs();
+
+        System.out.println(String.format("%-36s %8s %6s %12s %14s %20s %12s %12s",
+                "runner", "size", "cache", "ms/op", "MB/s", "± MB/s", "gc(ms)", "alloc/op"));
+        for (long size : sizes) {
+            File source = fixture(dir, size);
+            File target = new File(dir, source.getName() + ".copy");
+            for (String cache : caches) {
+                Runnable beforeEach = cache.equals("cold") ? CopyBenchmark::dropCaches : null;
+                for (Candidate candidate : CANDIDATES) {
+                    if ((selected != null && !selected.contains(candidate.name)) || size > candidate.maxFileSize) {
+                        continue;
+                    }
+                    for (long bufferSize : candidate.buffered ? bufferSizes : new long[]{0}) {
+                        for (boolean direct : candidate.directOption ? new boolean[]{false, true} : new boolean[]{false}) {
+                            FileCopyRunner runner = candidate.factory.create((int) bufferSize, direct);
+                            try {
+                                Result result = measure(runner, source, target, warmup, iterations, beforeEach);
+                                System.out.println(String.format("%-36s %8s %6s %12.3f %14.1f %20.1f %12s %12s",
+                                        runner, formatSize(size), cache, result.averageMillis(), result.throughput(),
+                                        result.throughputError(), result.gcCount + "(" + result.gcMillis + ")",
+                                        formatSize(result.allocatedPerOp)));
+                            } catch (UnsupportedOperationException e) {
+                                //比如直接IO在tmpfs上用不了
+                                System.out.println(String.format("%-36s %8s %6s %s", runner, formatSize(size), cache, e.getMessage()));
+                            } finally {
+                                if (runner instanceof AutoCloseable) {
+                                    closeQuietly((AutoCloseable) runner);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            target.delete();
+        }
+        if (dirName == null) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+}
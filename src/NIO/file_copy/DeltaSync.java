@@ -0,0 +1,420 @@
+package NIO.file_copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * @des 类似rsync的增量同步：目标文件已经有旧版本时，只改写变了的部分
+ * 1. 把目标文件按块算签名：弱校验和（可以滚动计算）+ 强校验和（MD5）
+ * 2. 源文件用一个窗口从头滑到尾，每滑一个字节滚动更新弱校验和，弱校验和命中了再用强校验和确认
+ * 3. 命中的块如果就在目标文件的同一位置，说明没变，跳过；其余部分用带position的write写到目标文件的同一位置
+ * 是原地改写，没有临时文件；挪了位置的块也要写一遍，因为原地改写时那个位置的旧内容还有用
+ */
+public class DeltaSync implements FileCopyRunner {
+    //弱校验和里两个16位累加和的模
+    private static final int MOD = 1 << 16;
+
+    //0表示按目标文件大小自动选
+    private final int blockSize;
+
+    public DeltaSync(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    public DeltaSync() {
+        this(0);
+    }
+
+    /**
+     * 一次同步的统计
+     */
+    public static class Result {
+        private final long size;
+        private final int blockSize;
+        //位置也没变、不用写的字节数
+        private long skippedBytes;
+        //在目标文件里找到了，但换了位置，还是要写的字节数
+        private long movedBytes;
+        //目标文件里没有的新内容
+        private long literalBytes;
+        private long nanos;
+
+        Result(long size, int blockSize) {
+            this.size = size;
+            this.blockSize = blockSize;
+        }
+
+        public long getBytesWritten() {
+            return movedBytes + literalBytes;
+        }
+
+        public long getBytesSaved() {
+            return skippedBytes;
+        }
+
+        public long getMovedBytes() {
+            return movedBytes;
+        }
+
+        public long getLiteralBytes() {
+            return literalBytes;
+        }
+
+        /**
+         * 和整个文件重新复制相比少写了多少比例
+         */
+        public double savedRatio() {
+            return size == 0 ? 0 : (double) skippedBytes / size;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("size=%d, block=%d, written=%d (literal=%d, moved=%d), saved=%d (%.1f%%), %.3f ms",
+                    size, blockSize, getBytesWritten(), literalBytes, movedBytes, skippedBytes,
+                    savedRatio() * 100, nanos / 1e6);
+        }
+    }
+
+    /**
+     * 目标文件的块签名
+     */
+    private static class Signature {
+        private final int blockSize;
+        private final long size;
+        private final int[] weak;
+        private final byte[][] strong;
+        //弱校验和 -> 块号的开放寻址表，每个位置都要查一次，不能装箱
+        //keys是弱校验和，heads是它的第一个块，同一个弱校验和的其余块按块号顺序用next串起来，-1表示没有
+        private final int[] keys;
+        private final int[] heads;
+        private final int[] tails;
+        private final int[] next;
+        private final int shift;
+        //rsync的16位tag：弱校验和两半相加取低16位，先查这个位图，绝大多数不匹配的位置在这里就排除了
+        private final long[] tags = new long[(1 << 16) / 64];
+
+        Signature(int blockSize, long size) {
+            this.blockSize = blockSize;
+            this.size = size;
+            int blocks = (int) ((size + blockSize - 1) / blockSize);
+            this.weak = new int[blocks];
+            this.strong = new byte[blocks][];
+            //装填因子不超过一半
+            int capacity = Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) << 1;
+            this.keys = new int[capacity];
+            this.heads = new int[capacity];
+            this.tails = new int[capacity];
+            this.next = new int[blocks];
+            this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+            Arrays.fill(heads, -1);
+        }
+
+        private static int tag(int weak) {
+            return ((weak >>> 16) + weak) & 0xffff;
+        }
+
+        private int slot(int weak) {
+            int slot = (weak * 0x9E3779B9) >>> shift;
+            while (heads[slot] >= 0 && keys[slot] != weak) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            return slot;
+        }
+
+        /**
+         * 块要按块号从小到大加进来
+         */
+        void add(int block, int weak) {
+            int tag = tag(weak);
+            tags[tag >>> 6] |= 1L << tag;
+            next[block] = -1;
+            int slot = slot(weak);
+            if (heads[slot] < 0) {
+                keys[slot] = weak;
+                heads[slot] = block;
+            } else {
+                next[tails[slot]] = block;
+            }
+            tails[slot] = block;
+        }
+
+        /**
+         * 弱校验和等于weak的第一个块，没有就是-1，后面的块用next取
+         */
+        int first(int weak) {
+            int tag = tag(weak);
+            if ((tags[tag >>> 6] & (1L << tag)) == 0) {
+                return -1;
+            }
+            return heads[slot(weak)];
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, size - (long) block * blockSize);
+        }
+
+        /**
+         * 最后一块不满一个块大小时的长度，正好是整块就是0
+         */
+        int tailLength() {
+            return (int) (size % blockSize);
+        }
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        try {
+            sync(source, target);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 把target改成和source一样，返回写了多少、省了多少
+     */
+    public Result sync(File source, File target) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel fin = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            long size = fin.size();
+            long targetSize = fout.size();
+            int block = blockSize > 0 ? blockSize : chooseBlockSize(targetSize);
+            Signature signature = signature(fout, targetSize, block);
+            Result result = new Result(size, block);
+            new Matcher(fin, fout, size, signature, result).run();
+            if (targetSize > size) {
+                fout.truncate(size);
+            }
+            result.nanos = System.nanoTime() - start;
+            return result;
+        }
+    }
+
+    /**
+     * 和rsync一样，块大小取文件大小的平方根左右，1K对齐，在2K到128K之间
+     */
+    static int chooseBlockSize(long size) {
+        long block = (long) Math.sqrt((double) size) & ~1023L;
+        return (int) Math.max(2048, Math.min(128 << 10, block));
+    }
+
+    private static Signature signature(FileChannel channel, long size, int blockSize) throws IOException {
+        Signature signature = new Signature(blockSize, size);
+        MessageDigest md5 = md5();
+        byte[] data = new byte[blockSize];
+        for (int block = 0; block < signature.weak.length; block++) {
+            int length = signature.blockLength(block);
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            long position = (long) block * blockSize;
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("目标文件在计算签名时被修改");
+                }
+            }
+            int weak = weakChecksum(data, 0, length);
+            md5.update(data, 0, length);
+            signature.weak[block] = weak;
+            signature.strong[block] = md5.digest();
+            signature.add(block, weak);
+        }
+        return signature;
+    }
+
+    /**
+     * rsync的弱校验和：a是所有字节的和，b是按位置加权的和，高16位放b、低16位放a
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        long a = 0;
+        long b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (long) (length - i) * (data[offset + i] & 0xff);
+        }
+        return (int) ((b % MOD) << 16 | (a % MOD));
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 源文件滑过签名，边找边写；源文件的内容放在buf里，buf[0]对应源文件的bufStart位置
+     */
+    private static class Matcher {
+        private final FileChannel fin;
+        private final FileChannel fout;
+        private final long size;
+        private final Signature signature;
+        private final Result result;
+        private final int blockSize;
+        private final MessageDigest md5 = md5();
+        private final byte[] buf;
+        private long bufStart;
+        private int bufLength;
+        //窗口的起点
+        private long p;
+        //还没写出去的新内容从哪里开始，到p为止
+        private long literalStart;
+        //窗口[p, p + blockSize)的弱校验和的两半
+        private int a;
+        private int b;
+
+        Matcher(FileChannel fin, FileChannel fout, long size, Signature signature, Result result) {
+            this.fin = fin;
+            this.fout = fout;
+            this.size = size;
+            this.signature = signature;
+            this.result = result;
+            this.blockSize = signature.blockSize;
+            this.buf = new byte[Math.max(blockSize * 16, 1 << 20)];
+        }
+
+        void run() throws IOException {
+            boolean haveWeak = false;
+            while (size - p >= blockSize) {
+                ensure(p + blockSize);
+                if (!haveWeak) {
+                    int weak = weakChecksum(buf, (int) (p - bufStart), blockSize);
+                    a = weak & 0xffff;
+                    b = weak >>> 16;
+                    haveWeak = true;
+                }
+                int block = find((b << 16) | a, p, blockSize);
+                if (block >= 0) {
+                    matched(block, p, blockSize);
+                    p += blockSize;
+                    haveWeak = false;
+                    continue;
+                }
+                if (p + blockSize == size) {
+                    break;
+                }
+                //窗口往后滑一个字节：去掉最前面的字节，加上新进来的字节
+                ensure(p + blockSize + 1);
+                int out = buf[(int) (p - bufStart)] & 0xff;
+                int in = buf[(int) (p + blockSize - bufStart)] & 0xff;
+                a = Math.floorMod(a - out + in, MOD);
+                b = Math.floorMod(b - blockSize * out + a, MOD);
+                p++;
+            }
+            //剩下不满一块的尾巴，只可能和目标文件的最后一块（如果它也不满一块）一样
+            int tail = signature.tailLength();
+            long q = size - tail;
+            if (tail > 0 && q >= p) {
+                ensure(size);
+                int lastBlock = signature.weak.length - 1;
+                int weak = weakChecksum(buf, (int) (q - bufStart), tail);
+                if (find(weak, q, tail) == lastBlock) {
+                    matched(lastBlock, q, tail);
+                    p = size;
+                }
+            }
+            ensure(size);
+            writeLiteral(literalStart, size);
+        }
+
+        /**
+         * 弱校验和命中后用MD5确认；同一个位置的块优先，这样不用写
+         */
+        private int find(int weak, long position, int length) {
+            byte[] digest = null;
+            int found = -1;
+            for (int block = signature.first(weak); block >= 0; block = signature.next[block]) {
+                if (signature.blockLength(block) != length) {
+                    continue;
+                }
+                if (digest == null) {
+                    md5.update(buf, (int) (position - bufStart), length);
+                    digest = md5.digest();
+                }
+                if (Arrays.equals(digest, signature.strong[block])) {
+                    if ((long) block * blockSize == position) {
+                        return block;
+                    }
+                    if (found < 0) {
+                        found = block;
+                    }
+                }
+            }
+            return found;
+        }
+
+        private void matched(int block, long position, int length) throws IOException {
+            writeLiteral(literalStart, position);
+            if ((long) block * blockSize == position) {
+                result.skippedBytes += length;
+            } else {
+                write(position, length);
+                result.movedBytes += length;
+            }
+            literalStart = position + length;
+        }
+
+        private void writeLiteral(long from, long to) throws IOException {
+            if (to > from) {
+                write(from, (int) (to - from));
+                result.literalBytes += to - from;
+            }
+            literalStart = to;
+        }
+
+        private void write(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(buf, (int) (position - bufStart), length);
+            while (buffer.hasRemaining()) {
+                fout.write(buffer, position + length - buffer.remaining());
+            }
+        }
+
+        /**
+         * 保证源文件[.., end)在buf里；不够就先把p之前的新内容写掉，再把p之后的挪到开头，读满buf
+         */
+        private void ensure(long end) throws IOException {
+            if (end <= bufStart + bufLength) {
+                return;
+            }
+            writeLiteral(literalStart, p);
+            int keep = (int) (bufStart + bufLength - p);
+            System.arraycopy(buf, (int) (p - bufStart), buf, 0, keep);
+            bufStart = p;
+            bufLength = keep;
+            ByteBuffer buffer = ByteBuffer.wrap(buf, bufLength, buf.length - bufLength);
+            while (buffer.hasRemaining() && bufStart + buffer.position() < size) {
+                if (fin.read(buffer, bufStart + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            bufLength = buffer.position();
+            if (end > bufStart + bufLength) {
+                throw new IOException("源文件在同步过程中被修改");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "deltaSync(" + (blockSize > 0 ? String.valueOf(blockSize) : "auto") + ")";
+    }
+
+    public static void main(String[] args) throws IOException {
+        //java NIO.file_copy.DeltaSync 源文件 目标文件 [块大小]
+        if (args.length < 2) {
+            System.out.println("用法: DeltaSync <源文件> <目标文件> [块大小]");
+            return;
+        }
+        DeltaSync deltaSync = new DeltaSync(args.length > 2 ? Integer.parseInt(args[2]) : 0);
+        System.out.println(deltaSync.sync(new File(args[0]), new File(args[1])));
+    }
+}
@@ -0,0 +1,114 @@
+package NIO.file_copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @des 绕过页缓存的复制（O_DIRECT），复制大文件时不会把别的服务的热数据挤出页缓存
+ * 直接IO要求文件位置、每次读写的长度、缓冲区地址都按文件系统的块大小对齐：
+ * 缓冲区用alignedSlice切出对齐的一段；最后不满一块的尾巴也按整块写，写完再用普通channel截掉多出来的部分
+ * ExtendedOpenOption在jdk.unsupported模块里，反射拿，拿不到或者文件系统不支持就抛UnsupportedOperationException
+ */
+public class DirectIoCopy implements FileCopyRunner {
+    private static final OpenOption DIRECT = directOption();
+
+    private final int bufferSize;
+
+    public DirectIoCopy(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    private static OpenOption directOption() {
+        try {
+            Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object constant : type.getEnumConstants()) {
+                if (((Enum<?>) constant).name().equals("DIRECT")) {
+                    return (OpenOption) constant;
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            //JDK 10以前没有
+        }
+        return null;
+    }
+
+    public static boolean isAvailable() {
+        return DIRECT != null;
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        if (DIRECT == null) {
+            throw new UnsupportedOperationException("当前JDK不支持ExtendedOpenOption.DIRECT");
+        }
+        try {
+            long size = source.length();
+            try (FileChannel fin = openDirect(source, StandardOpenOption.READ);
+                 FileChannel fout = openDirect(target, StandardOpenOption.WRITE,
+                         StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                int blockSize = (int) Math.max(Files.getFileStore(source.toPath()).getBlockSize(),
+                        Files.getFileStore(target.getAbsoluteFile().getParentFile().toPath()).getBlockSize());
+                //缓冲区大小取块大小的整数倍，多分配一块留给对齐
+                int length = Math.max(blockSize, bufferSize / blockSize * blockSize);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(length + blockSize).alignedSlice(blockSize);
+                long position = 0;
+                while (position < size) {
+                    buffer.clear().limit(length);
+                    //读到文件末尾时会少于一块，这时返回的是实际读到的字节数
+                    while (buffer.hasRemaining() && position + buffer.position() < size) {
+                        if (fin.read(buffer, position + buffer.position()) < 0) {
+                            break;
+                        }
+                    }
+                    int read = buffer.position();
+                    if (read == 0) {
+                        throw new IOException(source + "在复制过程中被修改，位置" + position + "读不到数据");
+                    }
+                    //尾巴补齐到整块再写，多写的部分后面截掉
+                    int aligned = (read + blockSize - 1) / blockSize * blockSize;
+                    buffer.flip().limit(aligned);
+                    while (buffer.hasRemaining()) {
+                        fout.write(buffer, position + buffer.position());
+                    }
+                    position += read;
+                }
+            }
+            if (target.length() != size) {
+                try (FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+                    fout.truncate(size);
+                }
+            }
+        } catch (IOException e) {
+            if (isDirectRejected(e)) {
+                throw new UnsupportedOperationException(target + "所在的文件系统不支持直接IO", e);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FileChannel openDirect(File file, OpenOption... options) throws IOException {
+        OpenOption[] all = new OpenOption[options.length + 1];
+        System.arraycopy(options, 0, all, 0, options.length);
+        all[options.length] = DIRECT;
+        return FileChannel.open(file.toPath(), all);
+    }
+
+    /**
+     * tmpfs之类的文件系统不支持O_DIRECT，open时会报EINVAL
+     */
+    private static boolean isDirectRejected(IOException e) {
+        String message = e.getMessage();
+        return message != null && message.contains("Invalid argument");
+    }
+
+    @Override
+    public String toString() {
+        return "directIoCopy(" + bufferSize + ")";
+    }
+}
@@ -1,33 +1,21 @@
 package NIO.file_copy;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * @author Zhang Ruilong
  * @date 2021-09-12 2:01
- * @des 几张文件复制方式的对比
+ * @des 几种文件复制方式的对比，测速用CopyBenchmark
  */
-interface FileCopyRunner {
-    void copyFile(File source,File target);
-}
 public class FileCopyDemo {
 
-    private static final int ROUNDS=5;
-
-    private static void bencgmark(FileCopyRunner fileCopyRunner,File source,File target) {
-        long elapsed=0L;
-        for (int i=0;i<ROUNDS;i++) {
-            long startTime = System.currentTimeMillis();
-            fileCopyRunner.copyFile(source, target);
-            elapsed += System.currentTimeMillis()-startTime;
-            target.delete();
-        }
-        System.out.println(fileCopyRunner+":"+elapsed/ROUNDS);
-    }
-
-    private static void close(Closeable closeable) {
+    static void close(Closeable closeable) {
         if (closeable != null) {
             try {
                 closeable.close();
@@ -37,109 +25,239 @@ public class FileCopyDemo {
         }
     }
 
-    public static void main(String[] args) {
-        //不使用任何缓冲区，一个个字节来写
-        FileCopyRunner noBufferStreamCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                InputStream fin = null;
-                OutputStream fout = null;
-                try {
-                    fin = new FileInputStream(source);
-                    fout = new FileOutputStream(target);
-                    int read;
-                    while ((read = fin.read())!=-1) {
-                        fout.write(read);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
+    /**
+     * 不使用任何缓冲区，一个个字节来写
+     */
+    public static class NoBufferStreamCopy implements FileCopyRunner {
+        @Override
+        public void copyFile(File source, File target) {
+            InputStream fin = null;
+            OutputStream fout = null;
+            try {
+                fin = new FileInputStream(source);
+                fout = new FileOutputStream(target);
+                int read;
+                while ((read = fin.read())!=-1) {
+                    fout.write(read);
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                close(fin);
+                close(fout);
             }
-        };
-        //使用缓冲区，一次读一个缓冲区
-        FileCopyRunner bufferedStreamCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                BufferedInputStream fin = null;
-                BufferedOutputStream fout = null;
-                try {
-                    fin = new BufferedInputStream(
-                            new FileInputStream(source)
-                    );
-                    fout = new BufferedOutputStream(
-                            new FileOutputStream(target)
-                    );
-                    byte[] buffer = new byte[1024];
-                    int result;
-                    while ((result = fin.read(buffer))!=-1) {
-                        fout.write(buffer,0,result);
-                        fout.flush();
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
+        }
+
+        @Override
+        public String toString() {
+            return "noBufferStreamCopy";
+        }
+    }
+
+    /**
+     * 使用缓冲区，一次读一个缓冲区
+     */
+    public static class BufferedStreamCopy implements FileCopyRunner {
+        private final int bufferSize;
+
+        public BufferedStreamCopy(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        @Override
+        public void copyFile(File source, File target) {
+            BufferedInputStream fin = null;
+            BufferedOutputStream fout = null;
+            try {
+                fin = new BufferedInputStream(
+                        new FileInputStream(source)
+                );
+                fout = new BufferedOutputStream(
+                        new FileOutputStream(target)
+                );
+                byte[] buffer = new byte[bufferSize];
+                int result;
+                while ((result = fin.read(buffer))!=-1) {
+                    fout.write(buffer,0,result);
                 }
+                fout.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                close(fin);
+                close(fout);
             }
-        };
-        //Channel用它的buffer操作
-        FileCopyRunner nioBufferCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                FileChannel fin = null;
-                FileChannel fout = null;
-                try {
-                    fin = new FileInputStream(source).getChannel();
-                    fout = new FileOutputStream(target).getChannel();
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
-                    while ((fin.read(buffer)!=-1)) {
-                        buffer.flip();
-                        //全部读完
-                        while (buffer.hasRemaining()) {
-                            fout.write(buffer);
-                        }
-                        buffer.clear();
+        }
+
+        @Override
+        public String toString() {
+            return "bufferedStreamCopy(" + bufferSize + ")";
+        }
+    }
+
+    /**
+     * Channel用它的buffer操作，可以选堆上的还是直接缓冲区
+     */
+    public static class NioBufferCopy implements FileCopyRunner {
+        private final int bufferSize;
+        private final boolean direct;
+
+        public NioBufferCopy(int bufferSize, boolean direct) {
+            this.bufferSize = bufferSize;
+            this.direct = direct;
+        }
+
+        @Override
+        public void copyFile(File source, File target) {
+            FileChannel fin = null;
+            FileChannel fout = null;
+            try {
+                fin = new FileInputStream(source).getChannel();
+                fout = new FileOutputStream(target).getChannel();
+                ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+                while ((fin.read(buffer)!=-1)) {
+                    buffer.flip();
+                    //全部读完
+                    while (buffer.hasRemaining()) {
+                        fout.write(buffer);
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
+                    buffer.clear();
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                close(fin);
+                close(fout);
             }
-        };
-        //两个Channel直接传输数据
-        FileCopyRunner nioTransferCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                FileChannel fin = null;
-                FileChannel fout = null;
-                try {
-                    fin = new FileInputStream(source).getChannel();
-                    fout = new FileOutputStream(target).getChannel();
-                    long transferred=0L;//记录一共拷贝了多少字节
-                    long size = fin.size();
-                    while (transferred != size) {
-                        //从哪开始、传输多少、传到哪里
-                        transferred += fin.transferTo(0, size, fout);
+        }
+
+        @Override
+        public String toString() {
+            return "nioBufferCopy(" + bufferSize + (direct ? ",direct)" : ",heap)");
+        }
+    }
+
+    /**
+     * 两个Channel直接传输数据
+     */
+    public static class NioTransferCopy implements FileCopyRunner {
+        @Override
+        public void copyFile(File source, File target) {
+            FileChannel fin = null;
+            FileChannel fout = null;
+            try {
+                fin = new FileInputStream(source).getChannel();
+                fout = new FileOutputStream(target).getChannel();
+                long transferred=0L;//记录一共拷贝了多少字节
+                long size = fin.size();
+                while (transferred != size) {
+                    //从哪开始、传输多少、传到哪里；一次不一定传完，要从上次停下的地方接着传
+                    transferred += fin.transferTo(transferred, size - transferred, fout);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                close(fin);
+                close(fout);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "nioTransferCopy";
+        }
+    }
+
+    /**
+     * 把源文件和目标文件按窗口一段段映射到内存，直接在两块映射之间拷贝
+     * 一次映射不能超过2G，所以要分窗口；每个窗口用完马上unmap，不然要等GC才释放地址空间
+     */
+    public static class MappedBufferCopy implements FileCopyRunner {
+        private final long windowSize;
+
+        public MappedBufferCopy(long windowSize) {
+            if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("windowSize必须在(0, 2G)之间");
+            }
+            this.windowSize = windowSize;
+        }
+
+        @Override
+        public void copyFile(File source, File target) {
+            try (FileChannel fin = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.READ,
+                         StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long size = fin.size();
+                for (long position = 0; position < size; position += windowSize) {
+                    long count = Math.min(windowSize, size - position);
+                    MappedByteBuffer in = fin.map(FileChannel.MapMode.READ_ONLY, position, count);
+                    //READ_WRITE映射超出文件末尾时会把目标文件扩展到这么大
+                    MappedByteBuffer out = fout.map(FileChannel.MapMode.READ_WRITE, position, count);
+                    try {
+                        out.put(in);
+                    } finally {
+                        unmap(in);
+                        unmap(out);
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        }
+
+        @Override
+        public String toString() {
+            return "mappedBufferCopy(" + windowSize + ")";
+        }
+    }
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //拿不到就只能等GC回收映射了
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * 马上释放映射，unmap之后这个buffer不能再用
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        //java NIO.file_copy.FileCopyDemo [源文件]，不传就用resources/smallFile.jpg
+        File source = new File(args.length > 0 ? args[0] : "resources/smallFile.jpg");
+        File target = new File(source.getPath() + ".copy");
+        FileCopyRunner[] runners = {
+                new NoBufferStreamCopy(),
+                new BufferedStreamCopy(1024),
+                new NioBufferCopy(1024, false),
+                new NioTransferCopy(),
+                new MappedBufferCopy(64L << 20)
         };
-        File smallFile = new File("E:\\IdeaProjects\\EasyIO\\resources\\bigFile.mp4");
-        File smallFileCopy = new File("E:\\IdeaProjects\\EasyIO\\resources\\bigFileCopy.mp4");
-        bencgmark(noBufferStreamCopy,smallFile,smallFileCopy);
-        bencgmark(bufferedStreamCopy,smallFile,smallFileCopy);
-        bencgmark(nioBufferCopy,smallFile,smallFileCopy);
-        bencgmark(nioTransferCopy,smallFile,smallFileCopy);
+        for (FileCopyRunner runner : runners) {
+            CopyBenchmark.Result result = CopyBenchmark.measure(runner, source, target, 2, 5);
+            System.out.println(runner + ":" + result);
+        }
     }
 }
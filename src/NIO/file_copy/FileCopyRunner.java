@@ -0,0 +1,10 @@
+package NIO.file_copy;
+
+import java.io.File;
+
+/**
+ * @des 一种文件复制方式，复制失败抛UncheckedIOException，方便benchmark发现问题
+ */
+public interface FileCopyRunner {
+    void copyFile(File source,File target);
+}
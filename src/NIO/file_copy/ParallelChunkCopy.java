@@ -0,0 +1,154 @@
+package NIO.file_copy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @des 把大文件切成固定大小的块，多个线程各自用带position的transferTo复制自己那一块
+ * 目标文件先设好长度，每块打开自己的写channel定位到块的起点，互不干扰
+ * 源文件channel是共享的，带position的transferTo不会改channel的position，可以并发用
+ */
+public class ParallelChunkCopy implements FileCopyRunner, AutoCloseable {
+    /**
+     * 复制进度回调，在复制线程里调用，不要做耗时操作
+     */
+    public interface ProgressListener {
+        void onProgress(File source, long copied, long total);
+    }
+
+    private final long chunkSize;
+    private final int parallelism;
+    private final ExecutorService workers;
+    private volatile ProgressListener progressListener;
+
+    public ParallelChunkCopy(long chunkSize, int parallelism) {
+        if (chunkSize <= 0 || parallelism <= 0) {
+            throw new IllegalArgumentException("chunkSize和parallelism必须大于0");
+        }
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        AtomicInteger index = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "copy-worker-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 默认16M一块，线程数等于CPU核数
+     */
+    public ParallelChunkCopy() {
+        this(16L << 20, Runtime.getRuntime().availableProcessors());
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    @Override
+    public void copyFile(File source, File target) {
+        try (FileChannel fin = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long size = fin.size();
+            //先把目标文件截断/扩展到源文件大小，各块直接写到自己的位置上
+            try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+                raf.setLength(size);
+            }
+            AtomicLong copied = new AtomicLong();
+            if (size <= chunkSize) {
+                //只有一块就不用麻烦线程池了
+                copyChunk(fin, source, target, 0, size, copied, size);
+                return;
+            }
+            List<Future<?>> futures = new ArrayList<>();
+            for (long position = 0; position < size; position += chunkSize) {
+                long start = position;
+                long count = Math.min(chunkSize, size - position);
+                futures.add(workers.submit(() -> {
+                    copyChunk(fin, source, target, start, count, copied, size);
+                    return null;
+                }));
+            }
+            await(futures);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 复制一块，transferTo一次不一定传完，用done记住这一块已经传了多少
+     */
+    private void copyChunk(FileChannel fin, File source, File target, long start, long count,
+                           AtomicLong copied, long total) throws IOException {
+        try (FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            fout.position(start);
+            long done = 0;
+            while (done < count) {
+                long transferred = fin.transferTo(start + done, count - done, fout);
+                if (transferred <= 0) {
+                    //源文件在复制过程中被截短了
+                    throw new IOException(source + "在复制过程中被修改，位置" + (start + done) + "读不到数据");
+                }
+                done += transferred;
+                ProgressListener listener = progressListener;
+                long now = copied.addAndGet(transferred);
+                if (listener != null) {
+                    listener.onProgress(source, now, total);
+                }
+            }
+        }
+    }
+
+    /**
+     * 等所有块复制完；有一块失败就取消剩下的，把原始的IOException抛出去
+     */
+    private static void await(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(futures);
+            throw new IOException("复制被中断", e);
+        } catch (ExecutionException e) {
+            cancel(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void cancel(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "parallelChunkCopy(" + CopyBenchmark.formatSize(chunkSize) + "x" + parallelism + ")";
+    }
+}
@@ -0,0 +1,354 @@
+package NIO.file_copy;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @des 复制整个目录树，用ForkJoinPool做工作窃取：每个目录一个任务，目录里的文件再二分成小批
+ * 按文件大小选复制方式：很小的一次读进内存再一次写出去，中等的用transferTo，很大的切块并行复制
+ * 复制完一个文件就把相对路径记到日志里，中断以后用同一个日志重新跑会跳过已经复制好的文件，全部成功后删掉日志
+ */
+public class TreeCopier {
+    private static final LinkOption[] NOFOLLOW = {LinkOption.NOFOLLOW_LINKS};
+    //一个任务最多复制这么多个文件，再多就拆成两半
+    private static final int BATCH_SIZE = 16;
+    //日志攒够这么多行flush一次；没flush的记录丢了只是重新复制一遍
+    private static final int JOURNAL_FLUSH_LINES = 256;
+
+    private final long tinyThreshold;
+    private final long hugeThreshold;
+    private final ForkJoinPool pool;
+    private final FileCopyRunner tinyCopier = new InMemoryCopy();
+    private final FileCopyRunner midCopier = new FileCopyDemo.NioTransferCopy();
+    private final ParallelChunkCopy hugeCopier;
+
+    /**
+     * @param tinyThreshold 不超过这个大小的文件整个读进内存
+     * @param hugeThreshold 超过这个大小的文件切块并行复制
+     * @param parallelism   同时复制的文件数
+     */
+    public TreeCopier(long tinyThreshold, long hugeThreshold, int parallelism) {
+        this.tinyThreshold = tinyThreshold;
+        this.hugeThreshold = hugeThreshold;
+        this.pool = new ForkJoinPool(parallelism);
+        this.hugeCopier = new ParallelChunkCopy(64L << 20, parallelism);
+    }
+
+    public TreeCopier() {
+        this(64L << 10, 256L << 20, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 复制统计
+     */
+    public static class Stats {
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+
+        public long getFiles() {
+            return files.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * 日志里记着已经复制过、这次跳过的文件数
+         */
+        public long getSkipped() {
+            return skipped.sum();
+        }
+
+        public double getSeconds() {
+            long end = endNanos != 0 ? endNanos : System.nanoTime();
+            return (end - startNanos) / 1e9;
+        }
+
+        public double filesPerSecond() {
+            return getFiles() / Math.max(getSeconds(), 1e-9);
+        }
+
+        public double bytesPerSecond() {
+            return getBytes() / Math.max(getSeconds(), 1e-9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %d bytes, %d skipped in %.3f s: %.1f files/s, %.1f MB/s",
+                    getFiles(), getBytes(), getSkipped(), getSeconds(), filesPerSecond(), bytesPerSecond() / (1 << 20));
+        }
+    }
+
+    /**
+     * 复制目录树
+     * @param journal 进度日志，可以为null表示不支持断点续传
+     */
+    public Stats copyTree(Path source, Path target, Path journal) throws IOException {
+        if (!Files.isDirectory(source, NOFOLLOW)) {
+            throw new IOException(source + "不是目录");
+        }
+        Stats stats = new Stats();
+        Journal log = journal != null ? new Journal(journal) : null;
+        boolean finished = false;
+        try {
+            pool.invoke(new DirectoryTask(source, target, source, stats, log));
+            finished = true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            stats.endNanos = System.nanoTime();
+            if (log != null) {
+                log.close(finished);
+            }
+        }
+        return stats;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+        hugeCopier.close();
+    }
+
+    /**
+     * 复制一个目录：先建目标目录，子目录各开一个任务，文件分批，全部完成后再设目录的属性
+     * 目录的修改时间要最后设，往里面建文件会改掉它
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Path targetDir;
+        private final Path root;
+        private final Stats stats;
+        private final Journal journal;
+
+        DirectoryTask(Path dir, Path targetDir, Path root, Stats stats, Journal journal) {
+            this.dir = dir;
+            this.targetDir = targetDir;
+            this.root = root;
+            this.stats = stats;
+            this.journal = journal;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectories(targetDir);
+                List<RecursiveAction> tasks = new ArrayList<>();
+                List<Path> files = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, NOFOLLOW)) {
+                            tasks.add(new DirectoryTask(entry, targetDir.resolve(entry.getFileName().toString()),
+                                    root, stats, journal));
+                        } else {
+                            files.add(entry);
+                        }
+                    }
+                }
+                if (!files.isEmpty()) {
+                    tasks.add(new FileBatchTask(files, 0, files.size(), targetDir, root, stats, journal));
+                }
+                invokeAll(tasks);
+                copyAttributes(dir, targetDir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 复制一个目录里的一批文件，太多就拆成两半，空闲线程可以偷走另一半
+     */
+    private class FileBatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+        private final Path targetDir;
+        private final Path root;
+        private final Stats stats;
+        private final Journal journal;
+
+        FileBatchTask(List<Path> files, int from, int to, Path targetDir, Path root, Stats stats, Journal journal) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.targetDir = targetDir;
+            this.root = root;
+            this.stats = stats;
+            this.journal = journal;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FileBatchTask(files, from, middle, targetDir, root, stats, journal),
+                        new FileBatchTask(files, middle, to, targetDir, root, stats, journal));
+                return;
+            }
+            try {
+                for (int i = from; i < to; i++) {
+                    Path file = files.get(i);
+                    copyEntry(file, targetDir.resolve(file.getFileName().toString()), root, stats, journal);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void copyEntry(Path file, Path target, Path root, Stats stats, Journal journal) throws IOException {
+        String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+        if (journal != null && journal.isDone(relative) && Files.exists(target, NOFOLLOW)) {
+            stats.skipped.increment();
+            return;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, NOFOLLOW);
+        if (attributes.isSymbolicLink()) {
+            Files.deleteIfExists(target);
+            Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+        } else if (attributes.isRegularFile()) {
+            TracedCopy.copyFile(chooseCopier(attributes.size()), file.toFile(), target.toFile());
+            copyAttributes(file, target);
+            stats.bytes.add(attributes.size());
+        } else {
+            //设备文件、管道之类的不复制
+            return;
+        }
+        stats.files.increment();
+        if (journal != null) {
+            journal.markDone(relative);
+        }
+    }
+
+    private FileCopyRunner chooseCopier(long size) {
+        if (size <= tinyThreshold) {
+            return tinyCopier;
+        }
+        if (size <= hugeThreshold) {
+            return midCopier;
+        }
+        return hugeCopier;
+    }
+
+    /**
+     * 复制修改时间、访问时间，支持POSIX的话还有权限
+     */
+    private static void copyAttributes(Path source, Path target) throws IOException {
+        PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class, NOFOLLOW);
+        if (targetView != null) {
+            PosixFileAttributes attributes = Files.readAttributes(source, PosixFileAttributes.class, NOFOLLOW);
+            targetView.setPermissions(attributes.permissions());
+            targetView.setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), null);
+        } else {
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class, NOFOLLOW);
+            Files.setLastModifiedTime(target, attributes.lastModifiedTime());
+        }
+    }
+
+    /**
+     * 小文件一次读进内存再一次写出去，省掉循环和缓冲区
+     */
+    static class InMemoryCopy implements FileCopyRunner {
+        @Override
+        public void copyFile(File source, File target) {
+            try {
+                Files.write(target.toPath(), Files.readAllBytes(source.toPath()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "inMemoryCopy";
+        }
+    }
+
+    /**
+     * 进度日志，每行一个已经复制完的相对路径
+     */
+    private static class Journal {
+        private final Path path;
+        private final Set<String> done = new HashSet<>();
+        private final BufferedWriter writer;
+        private int unflushed;
+
+        Journal(Path path) throws IOException {
+            this.path = path;
+            if (Files.exists(path)) {
+                done.addAll(Files.readAllLines(path, StandardCharsets.UTF_8));
+            }
+            this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        /**
+         * 只在开始前加载，之后只读，不用加锁
+         */
+        boolean isDone(String relative) {
+            return done.contains(relative);
+        }
+
+        synchronized void markDone(String relative) throws IOException {
+            writer.write(relative);
+            writer.newLine();
+            if (++unflushed >= JOURNAL_FLUSH_LINES) {
+                writer.flush();
+                unflushed = 0;
+            }
+        }
+
+        /**
+         * 全部复制成功就删掉日志，否则留着下次接着复制
+         */
+        synchronized void close(boolean finished) throws IOException {
+            writer.close();
+            if (finished) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        //java NIO.file_copy.TreeCopier 源目录 目标目录 [进度日志]
+        if (args.length < 2) {
+            System.out.println("用法: TreeCopier <源目录> <目标目录> [进度日志]");
+            return;
+        }
+        TreeCopier copier = new TreeCopier();
+        try {
+            Stats stats = copier.copyTree(Paths.get(args[0]), Paths.get(args[1]),
+                    args.length > 2 ? Paths.get(args[2]) : null);
+            System.out.println(stats);
+        } finally {
+            copier.shutdown();
+        }
+    }
+}
@@ -1,5 +1,17 @@
 package NIO.server;
 
+import common.buffer.BufferPool;
+import common.buffer.SharedMessage;
+import common.codec.FrameCodec;
+import common.codec.LineCodec;
+import common.jfr.AcceptEvent;
+import common.jfr.DecodeEvent;
+import common.jfr.RecipientWriteEvent;
+import common.jfr.SocketReadEvent;
+import common.metrics.ServerMetrics;
+import common.room.ChatCommand;
+import common.room.RoomRegistry;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -7,23 +19,53 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Zhang Ruilong
  * @date 2021-09-12 22:35
  * @des 基于NIO模型聊天室的SERVER
+ * workerCount为0时是单Reactor，accept和read都在同一个selector上；
+ * 大于0时是主从Reactor，一个selector只负责accept，workerCount个selector负责读写
  */
 public class ChatServer {
     private int DEFAULT_PORT=8888;
     private String QUIT="quit";
     private int BUFFER = 1024;
+    private int MAX_FRAME_LENGTH = 64 * 1024;
+    //每个连接发送队列的默认高低水位
+    private int HIGH_WATER_MARK = 64 * 1024;
+    private int LOW_WATER_MARK = 16 * 1024;
+
+    /**
+     * 新连接分配给哪个worker
+     */
+    public enum LoadBalance {
+        ROUND_ROBIN,
+        LEAST_CONNECTIONS
+    }
 
     private ServerSocketChannel serverSocketChannel;
-    private Selector selector;
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
+    private Reactor boss;
+    private Reactor[] workers;
+    private AtomicInteger nextWorker = new AtomicInteger();
+    //所有reactor上的客户端，多个worker线程都会读，所以用并发的集合
+    private Set<SelectionKey> clientKeys = ConcurrentHashMap.newKeySet();
+    //聊天室，成员按所在的worker分片
+    private RoomRegistry<Connection> rooms;
     private Charset charset = Charset.forName("UTF-8");
     private int port;
+    private int workerCount;
+    private LoadBalance loadBalance = LoadBalance.ROUND_ROBIN;
+    private int lowWaterMark = LOW_WATER_MARK;
+    private int highWaterMark = HIGH_WATER_MARK;
+    private Connection.OverflowPolicy overflowPolicy = Connection.OverflowPolicy.PAUSE_PRODUCER;
+    //默认按行分帧，兼容telnet和BIO的客户端
+    private FrameCodec frameCodec = new LineCodec(MAX_FRAME_LENGTH);
+    //发出去的消息都从池里借直接缓冲区
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private ServerMetrics metrics = ServerMetrics.of("nio");
 
     public ChatServer(int port) {
         this.port = port;
@@ -33,6 +75,43 @@ public class ChatServer {
         this.port = DEFAULT_PORT;
     }
 
+    public ChatServer(int port, int workerCount, LoadBalance loadBalance) {
+        this.port = port;
+        this.workerCount = workerCount;
+        this.loadBalance = loadBalance;
+    }
+
+    /**
+     * 设置每个连接发送队列的高低水位，需要在start之前调用
+     */
+    public void setWriteWaterMark(int lowWaterMark, int highWaterMark) {
+        if (lowWaterMark < 0 || highWaterMark < lowWaterMark) {
+            throw new IllegalArgumentException("水位设置错误: low=" + lowWaterMark + ", high=" + highWaterMark);
+        }
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+    }
+
+    public void setOverflowPolicy(Connection.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setFrameCodec(FrameCodec frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     public void start() {
         try {
             //默认处于阻塞式调用
@@ -40,108 +119,242 @@ public class ChatServer {
             //修改成非阻塞式调用
             serverSocketChannel.configureBlocking(false);
             serverSocketChannel.socket().bind(new InetSocketAddress(port));
-            selector = Selector.open();
-            //注册accept事件
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器，监听端口:"+port);
-            while (true) {
-                //如果没有就会一直阻塞，等待有内容返回
-                selector.select();
-                //获取被触发的事件
-                Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                for (SelectionKey selectionKey : selectionKeys) {
-                    //todo 处理被触发的事件
-                    handles(selectionKey);
+            metrics.bindBufferPool(bufferPool);
+            boss = new Reactor(this, 0, "boss", BUFFER);
+            if (workerCount <= 0) {
+                //单Reactor，boss自己处理读写
+                workers = new Reactor[]{boss};
+            } else {
+                workers = new Reactor[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    workers[i] = new Reactor(this, i, "worker-" + i, BUFFER);
                 }
-                //需要手动清空事件
-                selectionKeys.clear();
             }
+            rooms = new RoomRegistry<>(workers.length, connection -> connection.getReactor().getId());
+            if (workers[0] != boss) {
+                for (Reactor worker : workers) {
+                    new Thread(worker, worker.getName()).start();
+                }
+            }
+            //注册accept事件
+            serverSocketChannel.register(boss.getSelector(), SelectionKey.OP_ACCEPT);
+            System.out.println("启动服务器，监听端口:"+port+"，worker数量:"+workerCount);
+            //boss在当前线程运行
+            boss.run();
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            //会自动解除注册并关闭
-            close(selector);
+            close(serverSocketChannel);
         }
     }
 
     /**
-     * 处理被触发的事件
+     * 处理被触发的事件，由reactor线程调用
      */
-    private void handles(SelectionKey selectionKey) throws IOException {
+    void handles(SelectionKey selectionKey, Reactor reactor) throws IOException {
         //ACCEPT - 和客户端建立了连接
         if (selectionKey.isAcceptable()) {
-            ServerSocketChannel channel = (ServerSocketChannel) selectionKey.channel();
+            AcceptEvent event = new AcceptEvent();
+            event.begin();
             SocketChannel client = serverSocketChannel.accept();
-            client.configureBlocking(false);
-            client.register(selector,SelectionKey.OP_READ);
-            System.out.println("客户端:["+client.socket().getPort()+"]已连接");
-            System.out.println("现有客户端:"+(selector.keys().size()-1));
+            if (client == null) {
+                return;
+            }
+            //交给worker注册，不在当前线程直接register到别的selector上
+            chooseWorker().register(client);
+            event.end();
+            if (event.shouldCommit()) {
+                event.server = "nio";
+                event.remotePort = client.socket().getPort();
+                event.commit();
+            }
         }
-        //READ - 客户端发送了消息
-        else if(selectionKey.isReadable()) {
-            SocketChannel client = (SocketChannel) selectionKey.channel();
-            String fwdMsg = receive(selectionKey,selector);
-            if (checkQuit(fwdMsg) || fwdMsg.isEmpty()) {
-                remove(selectionKey,selector);
-            } else {
-                forwordMessage(client,fwdMsg);
+        else {
+            Connection connection = (Connection) selectionKey.attachment();
+            //WRITE - 之前没写完的消息现在可以继续写了
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                connection.flush();
+            }
+            //READ - 客户端发送了消息
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                receive(connection, reactor.rBuffer);
+            }
+        }
+    }
+
+    /**
+     * 选出一个worker负责新连接
+     */
+    private Reactor chooseWorker() {
+        if (workers.length == 1) {
+            return workers[0];
+        }
+        if (loadBalance == LoadBalance.LEAST_CONNECTIONS) {
+            Reactor least = workers[0];
+            for (Reactor worker : workers) {
+                if (worker.getConnections() < least.getConnections()) {
+                    least = worker;
+                }
             }
+            return least;
         }
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
     }
 
     /**
-     * 读取用户通道发来的消息
+     * 客户端已经注册到某个reactor上了
      */
-    private String receive(SelectionKey selectionKey,Selector selector) throws IOException {
+    void onRegistered(SelectionKey selectionKey, Reactor reactor) {
         SocketChannel client = (SocketChannel) selectionKey.channel();
-        rBuffer.clear();
+        Connection connection = new Connection(selectionKey, reactor, frameCodec.newDecoder(),
+                lowWaterMark, highWaterMark, overflowPolicy);
+        selectionKey.attach(connection);
+        clientKeys.add(selectionKey);
+        metrics.connectionOpened();
+        //连上来先进大厅
+        rooms.join(ChatCommand.LOBBY, connection);
+        System.out.println("客户端:["+client.socket().getPort()+"]已连接");
+        System.out.println("现有客户端:"+clientKeys.size());
+    }
+
+    /**
+     * 读取用户通道发来的消息，切成一帧一帧再处理
+     * 一次read可能是半条消息，也可能是好几条粘在一起，不完整的部分留在decoder里等下次
+     */
+    private void receive(Connection connection, ByteBuffer rBuffer) throws IOException {
+        SelectionKey selectionKey = connection.getKey();
+        SocketChannel client = connection.getChannel();
+        SocketReadEvent event = new SocketReadEvent();
+        event.begin();
+        long bytesRead = 0;
+        int frames = 0;
+        int read;
         try {
-            //如果还有数据就一直读
-            while (client.read(rBuffer)>0) {}
-        } catch (IOException e) {
-            //这里不用写东西，wdMsg.isEmpty()会处理
+            do {
+                rBuffer.clear();
+                read = client.read(rBuffer);
+                if (read > 0) {
+                    metrics.bytesRead(read);
+                    bytesRead += read;
+                }
+                rBuffer.flip();
+                //帧直接是rBuffer的切片，下一次read之前处理完
+                ByteBuffer frame;
+                DecodeEvent decodeEvent = new DecodeEvent();
+                decodeEvent.begin();
+                while ((frame = connection.getDecoder().decode(rBuffer)) != null) {
+                    frames++;
+                    metrics.messageReceived();
+                    int frameLength = frame.remaining();
+                    String fwdMsg = String.valueOf(charset.decode(frame));
+                    if (checkQuit(fwdMsg)) {
+                        remove(selectionKey);
+                        return;
+                    }
+                    if (!fwdMsg.isEmpty()) {
+                        dispatch(connection, fwdMsg);
+                    }
+                    decodeEvent.end();
+                    if (decodeEvent.shouldCommit()) {
+                        decodeEvent.server = "nio";
+                        decodeEvent.frameLength = frameLength;
+                        decodeEvent.commit();
+                    }
+                    decodeEvent = new DecodeEvent();
+                    decodeEvent.begin();
+                }
+            } while (read > 0);
+            //客户端关闭了连接
+            if (read < 0) {
+                event.endOfStream = true;
+                remove(selectionKey);
+            }
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.server = "nio";
+                event.remotePort = client.socket().getPort();
+                event.bytesRead = bytesRead;
+                event.frames = frames;
+                event.commit();
+            }
         }
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
     }
 
     /**
      * 移除一个客户端
      */
-    private void remove(SelectionKey selectionKey, Selector selector) {
+    void remove(SelectionKey selectionKey) {
+        if (!(selectionKey.channel() instanceof SocketChannel) || !clientKeys.remove(selectionKey)) {
+            return;
+        }
+        metrics.connectionClosed();
         SocketChannel client = (SocketChannel) selectionKey.channel();
         System.out.println("客户端:["+client.socket().getPort()+"]已退出");
         //客户端异常或自动关闭，取消selector监听
         selectionKey.cancel();
-        //更新selector，单一线程其实没啥作用，当多线程是很有必要的
-        selector.wakeup();
-        System.out.println("现有客户端:"+(selector.keys().size()-1));
+        close(client);
+        Connection connection = (Connection) selectionKey.attachment();
+        rooms.leaveAll(connection);
+        connection.close();
+        connection.getReactor().deregister();
+        System.out.println("现有客户端:"+clientKeys.size());
     }
 
     /**
-     * 转发消息给除了发送者外的所有客户端
+     * 转发消息给房间里除了发送者外的所有客户端
+     * 只是放进每个接收方的发送队列，真正的写由接收方的reactor完成，慢的客户端不会拖住发送者
      */
-    private void forwordMessage(SocketChannel client, String fwdMsg) throws IOException {
-        //所有注册在selector的
-        Set<SelectionKey> keys = selector.keys();
-        for (SelectionKey key : keys) {
-            Channel channel = key.channel();
-            if (channel instanceof ServerSocketChannel) {
-                continue;
-            }
+    private void forwordMessage(Connection sender, String room, String fwdMsg) {
+        long start = System.nanoTime();
+        SocketChannel client = sender.getChannel();
+        //消息对每个接收方都一样，只编码一次
+        SharedMessage message = SharedMessage.encode(bufferPool, frameCodec, charset,
+                ChatCommand.format(room, client.socket().getPort()+":"+fwdMsg));
+        //只发给这个房间的成员
+        rooms.forEachMember(room, member -> {
             //处于正常的状态，channel没有被关闭，监视的selector也是好的
             //保证不给自己发送
-            if (key.isValid() && !client.equals(channel)) {
-                //wBuffer写入channel
-                wBuffer.clear();
-                String msg = client.socket().getPort()+":"+fwdMsg;
-                wBuffer.put(charset.encode(msg));
-                //写转为读
-                wBuffer.flip();
-                while (wBuffer.hasRemaining()) {
-                    ((SocketChannel)channel).write(wBuffer);
+            if (member != sender && member.getKey().isValid()) {
+                RecipientWriteEvent event = new RecipientWriteEvent();
+                event.begin();
+                //每个接收方入队时retain，写完了自己release
+                boolean accepted = member.enqueue(message, sender);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.server = "nio";
+                    event.recipientPort = member.getChannel().socket().getPort();
+                    event.messageSize = message.size();
+                    event.accepted = accepted;
+                    event.commit();
                 }
             }
+        });
+        //放掉创建时的那一次引用，所有接收方都写完后缓冲区回到池里
+        message.release();
+        metrics.recordFanout(System.nanoTime() - start);
+    }
+
+    /**
+     * 处理一条消息：加入/退出房间，或者在房间里发言
+     */
+    private void dispatch(Connection sender, String msg) {
+        ChatCommand command = ChatCommand.parse(msg);
+        switch (command.getType()) {
+            case JOIN:
+                rooms.join(command.getRoom(), sender);
+                break;
+            case LEAVE:
+                rooms.leave(command.getRoom(), sender);
+                break;
+            case PUBLISH:
+                //只能在自己加入了的房间发言
+                if (rooms.isMember(command.getRoom(), sender)) {
+                    forwordMessage(sender, command.getRoom(), command.getText());
+                }
+                break;
+            default:
+                break;
         }
     }
 
@@ -164,6 +377,8 @@ public class ChatServer {
 
 
     public static void main(String[] args) {
-        new ChatServer(7777).start();
+        //java NIO.server.ChatServer [worker数量]，不传就是单Reactor
+        int workerCount = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        new ChatServer(7777, workerCount, LoadBalance.ROUND_ROBIN).start();
     }
 }
@@ -0,0 +1,248 @@
+package NIO.server;
+
+import common.buffer.SharedMessage;
+import common.codec.FrameDecoder;
+import common.jfr.SocketWriteEvent;
+import common.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des 一个客户端连接，作为SelectionKey的attachment
+ * 每个连接有自己的发送队列，写不完的部分留在队列里并监听OP_WRITE，不在selector线程里死循环写
+ */
+public class Connection {
+    /**
+     * 发送队列超过高水位时怎么处理发消息的一方
+     */
+    public enum OverflowPolicy {
+        //暂停读取发送者的消息，直到接收方的队列降到低水位以下
+        PAUSE_PRODUCER,
+        //直接丢弃发给这个接收方的消息
+        DROP
+    }
+
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private final FrameDecoder decoder;
+    private final int lowWaterMark;
+    private final int highWaterMark;
+    private final OverflowPolicy overflowPolicy;
+    private final ServerMetrics metrics;
+
+    //以下字段都由this保护，任意worker线程都可能往队列里放消息
+    private final Deque<SharedMessage> outbound = new ArrayDeque<>();
+    //队头消息的视图，记录写到哪里了；写完整条消息才换下一条
+    private ByteBuffer headView;
+    private final List<Connection> pausedProducers = new ArrayList<>();
+    private int pendingBytes;
+    private boolean flushScheduled;
+    private boolean closed;
+    private long droppedMessages;
+
+    //被多少个接收方暂停了读，归0才能恢复读
+    private final AtomicInteger pausedBy = new AtomicInteger();
+
+    public Connection(SelectionKey key, Reactor reactor, FrameDecoder decoder,
+                      int lowWaterMark, int highWaterMark, OverflowPolicy overflowPolicy) {
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.reactor = reactor;
+        this.decoder = decoder;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.overflowPolicy = overflowPolicy;
+        this.metrics = reactor.getChatServer().getMetrics();
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public Reactor getReactor() {
+        return reactor;
+    }
+
+    /**
+     * 只在自己的reactor线程里使用
+     */
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * 把消息放进发送队列，可以在任意线程调用；入队成功会retain一次，写完后release
+     * @param msg 编码好的消息，多个接收方共享
+     * @param producer 发消息的连接，高水位时可能被暂停读，可以为null
+     * @return 消息被丢弃时返回false
+     */
+    public boolean enqueue(SharedMessage msg, Connection producer) {
+        boolean flushNow = false;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (pendingBytes + msg.size() > highWaterMark) {
+                if (overflowPolicy == OverflowPolicy.DROP || producer == null) {
+                    droppedMessages++;
+                    metrics.messageDropped();
+                    return false;
+                }
+                //超过高水位，先收下这条消息，但让发送者暂停，等我们排空了再恢复
+                if (!pausedProducers.contains(producer)) {
+                    pausedProducers.add(producer);
+                    producer.pauseReading();
+                }
+            }
+            outbound.add(msg.retain());
+            pendingBytes += msg.size();
+            metrics.messageQueued();
+            if (!flushScheduled) {
+                flushScheduled = true;
+                flushNow = reactor.inEventLoop();
+                if (!flushNow) {
+                    //只有自己的reactor线程才能动自己的SelectionKey
+                    reactor.execute(this::flushQuietly);
+                }
+            }
+        }
+        if (flushNow) {
+            flushQuietly();
+        }
+        return true;
+    }
+
+    /**
+     * 尽可能多地把队列写到channel，写不完就监听OP_WRITE，只能在自己的reactor线程调用
+     */
+    public void flush() throws IOException {
+        List<Connection> resumed = null;
+        synchronized (this) {
+            flushScheduled = false;
+            if (closed) {
+                return;
+            }
+            SocketWriteEvent event = new SocketWriteEvent();
+            event.begin();
+            long bytesWritten = 0;
+            int messagesWritten = 0;
+            while (!outbound.isEmpty()) {
+                if (headView == null) {
+                    headView = outbound.peek().view();
+                }
+                int written = channel.write(headView);
+                pendingBytes -= written;
+                bytesWritten += written;
+                metrics.bytesWritten(written);
+                if (headView.hasRemaining()) {
+                    //socket发送缓冲区满了，剩下的等OP_WRITE
+                    break;
+                }
+                headView = null;
+                outbound.poll().release();
+                messagesWritten++;
+                metrics.messageSent();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.server = "nio";
+                event.remotePort = channel.socket().getPort();
+                event.bytesWritten = bytesWritten;
+                event.messagesWritten = messagesWritten;
+                event.bytesPending = pendingBytes;
+                event.commit();
+            }
+            if (outbound.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            if (pendingBytes <= lowWaterMark && !pausedProducers.isEmpty()) {
+                resumed = new ArrayList<>(pausedProducers);
+                pausedProducers.clear();
+            }
+        }
+        if (resumed != null) {
+            for (Connection producer : resumed) {
+                producer.resumeReading();
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            reactor.getChatServer().remove(key);
+        }
+    }
+
+    /**
+     * 暂停和恢复都交给本连接自己的reactor线程去改interestOps
+     */
+    private void pauseReading() {
+        if (pausedBy.getAndIncrement() == 0) {
+            reactor.execute(() -> {
+                if (key.isValid() && pausedBy.get() > 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            });
+        }
+    }
+
+    private void resumeReading() {
+        if (pausedBy.decrementAndGet() == 0) {
+            reactor.execute(() -> {
+                if (key.isValid() && pausedBy.get() == 0) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            });
+        }
+    }
+
+    /**
+     * 关闭连接时丢弃未发送的消息，并放开被自己暂停的发送者
+     */
+    public void close() {
+        List<Connection> resumed;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            metrics.messagesDiscarded(outbound.size());
+            SharedMessage msg;
+            while ((msg = outbound.poll()) != null) {
+                msg.release();
+            }
+            headView = null;
+            pendingBytes = 0;
+            resumed = new ArrayList<>(pausedProducers);
+            pausedProducers.clear();
+        }
+        for (Connection producer : resumed) {
+            producer.resumeReading();
+        }
+    }
+}
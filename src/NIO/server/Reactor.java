@@ -0,0 +1,146 @@
+package NIO.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des 一个selector + 一条线程，负责处理分配给它的客户端的读写事件
+ */
+public class Reactor implements Runnable {
+    private final ChatServer chatServer;
+    private final int id;
+    private final String name;
+    private final Selector selector;
+    //每个reactor线程独享自己的读缓冲区，多个线程不能共用一个；用直接缓冲区，read时JDK不用再拷一次
+    final ByteBuffer rBuffer;
+    //其他线程交过来的任务（注册客户端、修改interestOps等），只能由本reactor线程执行
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    //当前负责的客户端数量，用来做最少连接数的负载均衡
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public Reactor(ChatServer chatServer, int id, String name, int bufferSize) throws IOException {
+        this.chatServer = chatServer;
+        this.id = id;
+        this.name = name;
+        this.selector = Selector.open();
+        this.rBuffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * 在worker数组里的下标，也是聊天室成员分片的编号
+     */
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public ChatServer getChatServer() {
+        return chatServer;
+    }
+
+    /**
+     * 当前线程是不是本reactor的线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 可以在任意线程调用：任务放进队列，然后唤醒selector，由reactor线程在下一轮循环执行
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 可以在任意线程调用：把客户端放进队列，然后唤醒selector，由reactor线程自己注册
+     * 如果直接在别的线程register，会和正阻塞在select()上的reactor线程抢同一把锁
+     */
+    public void register(SocketChannel client) {
+        connections.incrementAndGet();
+        execute(() -> doRegister(client));
+    }
+
+    /**
+     * 客户端被移除时调用
+     */
+    void deregister() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * 在reactor线程中完成真正的注册
+     */
+    private void doRegister(SocketChannel client) {
+        try {
+            client.configureBlocking(false);
+            SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+            chatServer.onRegistered(key, this);
+        } catch (IOException e) {
+            connections.decrementAndGet();
+            chatServer.close(client);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                //只算处理事件的时间，阻塞在select上的时间不算
+                long start = System.nanoTime();
+                runTasks();
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                int selected = selectionKeys.size();
+                for (SelectionKey selectionKey : selectionKeys) {
+                    //同一批里前面的事件可能已经把这个连接移除了，比如当场flush失败
+                    if (!selectionKey.isValid()) {
+                        continue;
+                    }
+                    try {
+                        chatServer.handles(selectionKey, this);
+                    } catch (IOException | CancelledKeyException e) {
+                        //单个客户端出错不能影响整个reactor
+                        chatServer.remove(selectionKey);
+                    }
+                }
+                selectionKeys.clear();
+                chatServer.getMetrics().recordLoop(System.nanoTime() - start, selected);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            chatServer.close(selector);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package common.buffer;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @des 按大小分级的直接缓冲区池，NIO和AIO的服务器共用
+ * 每个线程先用自己的缓存，不够了再去全局队列拿，都没有才真正allocateDirect
+ * 堆上的buffer每次读写socket时JDK都要先拷到一个临时的直接缓冲区里，直接用直接缓冲区就省了这次拷贝
+ * 启动参数加 -Deasyio.buffer.leakDetection=true 可以打印没有release的缓冲区是在哪里申请的
+ */
+public class BufferPool {
+    private static final int MIN_SIZE = 256;
+    private static final int MAX_SIZE = 64 * 1024;
+    //每个等级全局最多缓存多少字节
+    private static final int MAX_POOLED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+    //每个线程每个等级最多缓存多少个
+    private static final int THREAD_CACHE_SIZE = 32;
+
+    private static final BufferPool DEFAULT = new BufferPool(Boolean.getBoolean("easyio.buffer.leakDetection"));
+
+    private final boolean leakDetection;
+    private final Queue<PooledBuffer>[] globalQueues;
+    private final AtomicInteger[] globalCounts;
+    private final ThreadLocal<ArrayDeque<PooledBuffer>[]> threadCaches;
+
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder globalHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder hugeAllocations = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        int classes = sizeClass(MAX_SIZE) + 1;
+        globalQueues = new Queue[classes];
+        globalCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            globalQueues[i] = new ConcurrentLinkedQueue<>();
+            globalCounts[i] = new AtomicInteger();
+        }
+        threadCaches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<PooledBuffer>[] caches = new ArrayDeque[classes];
+            for (int i = 0; i < classes; i++) {
+                caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            return caches;
+        });
+    }
+
+    /**
+     * 服务器默认共用的池
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 借一个至少size字节的缓冲区，limit等于size，用完一定要release
+     */
+    public PooledBuffer acquire(int size) {
+        PooledBuffer pooled;
+        if (size > MAX_SIZE) {
+            //太大的不入池，用完交给GC
+            hugeAllocations.increment();
+            pooled = new PooledBuffer(this, -1, size);
+        } else {
+            int sizeClass = sizeClass(size);
+            pooled = threadCaches.get()[sizeClass].poll();
+            if (pooled != null) {
+                threadCacheHits.increment();
+            } else if ((pooled = globalQueues[sizeClass].poll()) != null) {
+                globalCounts[sizeClass].decrementAndGet();
+                globalHits.increment();
+            } else {
+                misses.increment();
+                pooled = new PooledBuffer(this, sizeClass, MIN_SIZE << sizeClass);
+            }
+        }
+        pooled.acquire(size, leakDetection);
+        active.incrementAndGet();
+        return pooled;
+    }
+
+    /**
+     * 引用计数归0时由PooledBuffer调用
+     */
+    void recycle(PooledBuffer pooled) {
+        active.decrementAndGet();
+        int sizeClass = pooled.sizeClass;
+        if (sizeClass < 0) {
+            return;
+        }
+        ArrayDeque<PooledBuffer> cache = threadCaches.get()[sizeClass];
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.offer(pooled);
+            return;
+        }
+        //线程缓存满了放回全局队列，全局也满了就交给GC
+        int maxCount = MAX_POOLED_BYTES_PER_CLASS / (MIN_SIZE << sizeClass);
+        if (globalCounts[sizeClass].incrementAndGet() <= maxCount) {
+            globalQueues[sizeClass].offer(pooled);
+        } else {
+            globalCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    void reportLeak(Throwable origin) {
+        leaks.increment();
+        active.decrementAndGet();
+        System.err.println("缓冲区泄漏：PooledBuffer被GC之前没有release");
+        origin.printStackTrace();
+    }
+
+    /**
+     * size落在哪个等级，第i级的大小是MIN_SIZE << i
+     */
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    public long getThreadCacheHits() {
+        return threadCacheHits.sum();
+    }
+
+    public long getGlobalHits() {
+        return globalHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getHugeAllocations() {
+        return hugeAllocations.sum();
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * 借出去还没还回来的个数
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    public double getHitRatio() {
+        long hits = getThreadCacheHits() + getGlobalHits();
+        long total = hits + getMisses() + getHugeAllocations();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{threadCacheHits=" + getThreadCacheHits()
+                + ", globalHits=" + getGlobalHits()
+                + ", misses=" + getMisses()
+                + ", huge=" + getHugeAllocations()
+                + ", active=" + getActive()
+                + ", leaks=" + getLeaks()
+                + ", hitRatio=" + String.format("%.4f", getHitRatio()) + "}";
+    }
+}
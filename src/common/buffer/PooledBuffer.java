@@ -0,0 +1,107 @@
+package common.buffer;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des 从BufferPool借出来的直接缓冲区，带引用计数，计数归0时回到池里
+ * 同一个PooledBuffer对象会跟着ByteBuffer一起被复用，借出和归还都不产生新对象
+ */
+public final class PooledBuffer {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final BufferPool pool;
+    //所属的大小等级，-1表示太大了不入池
+    final int sizeClass;
+    private final ByteBuffer buffer;
+    private final AtomicInteger refCnt = new AtomicInteger();
+    //只有开启泄漏检测时才有
+    private LeakTracker leakTracker;
+    private Cleaner.Cleanable cleanable;
+
+    PooledBuffer(BufferPool pool, int sizeClass, int capacity) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * 借出时调用，limit设成申请的大小
+     */
+    void acquire(int size, boolean trackLeak) {
+        refCnt.set(1);
+        buffer.clear();
+        buffer.limit(size);
+        if (trackLeak) {
+            leakTracker = new LeakTracker(pool, size);
+            cleanable = CLEANER.register(this, leakTracker);
+        }
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    /**
+     * 多一个使用者，每次retain都要对应一次release
+     */
+    public PooledBuffer retain() {
+        int cnt;
+        do {
+            cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("缓冲区已经被归还，不能再retain");
+            }
+        } while (!refCnt.compareAndSet(cnt, cnt + 1));
+        return this;
+    }
+
+    /**
+     * 少一个使用者，最后一个使用者release时归还到池里
+     * @return 是否已经归还
+     */
+    public boolean release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt > 0) {
+            return false;
+        }
+        if (cnt < 0) {
+            refCnt.incrementAndGet();
+            throw new IllegalStateException("缓冲区被重复release");
+        }
+        if (leakTracker != null) {
+            leakTracker.released = true;
+            cleanable.clean();
+            leakTracker = null;
+            cleanable = null;
+        }
+        pool.recycle(this);
+        return true;
+    }
+
+    /**
+     * PooledBuffer没有release就被GC了，说明有泄漏；不能引用PooledBuffer本身，否则永远不会被回收
+     */
+    private static class LeakTracker implements Runnable {
+        private final BufferPool pool;
+        private final Throwable origin;
+        private volatile boolean released;
+
+        LeakTracker(BufferPool pool, int size) {
+            this.pool = pool;
+            this.origin = new Throwable("泄漏的缓冲区(" + size + "字节)是在这里申请的");
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                pool.reportLeak(origin);
+            }
+        }
+    }
+}
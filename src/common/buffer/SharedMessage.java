@@ -0,0 +1,89 @@
+package common.buffer;
+
+import common.codec.FrameCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * @des 广播用的消息：只编码一次放进一个池化的直接缓冲区，每个接收方拿到的是自己的只读视图
+ * 视图之间共享同一块内存，但position/limit互不影响，所以可以同时交给多个channel去写
+ * 引用计数：创建者持有一次，每个接收方入队时retain，写完后release，最后一个release时缓冲区回到池里
+ */
+public final class SharedMessage {
+    //encoder不是线程安全的，每个线程缓存一个
+    private static final ThreadLocal<CharsetEncoder> ENCODERS = new ThreadLocal<>();
+
+    private final PooledBuffer buffer;
+    private final ByteBuffer payload;
+
+    private SharedMessage(PooledBuffer buffer) {
+        this.buffer = buffer;
+        this.payload = buffer.buffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * 把文本直接编码成一整帧放进池化的直接缓冲区，中间不再经过堆上的buffer
+     */
+    public static SharedMessage encode(BufferPool pool, FrameCodec codec, Charset charset, CharSequence text) {
+        CharsetEncoder encoder = encoder(charset);
+        int header = codec.headerLength();
+        PooledBuffer pooled = pool.acquire(header
+                + (int) Math.ceil(text.length() * encoder.maxBytesPerChar())
+                + codec.trailerLength());
+        ByteBuffer out = pooled.buffer();
+        //先空出帧头，内容编码完知道长度了再回填
+        out.position(header);
+        CharBuffer in = CharBuffer.wrap(text);
+        try {
+            CoderResult result = encoder.encode(in, out, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            result = encoder.flush(out);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+        } catch (CharacterCodingException e) {
+            pooled.release();
+            throw new IllegalArgumentException("消息编码失败", e);
+        }
+        codec.writeHeader(out, 0, out.position() - header);
+        codec.writeTrailer(out);
+        out.flip();
+        return new SharedMessage(pooled);
+    }
+
+    private static CharsetEncoder encoder(Charset charset) {
+        CharsetEncoder encoder = ENCODERS.get();
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder();
+            ENCODERS.set(encoder);
+        }
+        return encoder.reset();
+    }
+
+    /**
+     * 给一个接收方用的视图，只复制position/limit，不复制数据
+     */
+    public ByteBuffer view() {
+        return payload.duplicate();
+    }
+
+    public int size() {
+        return payload.remaining();
+    }
+
+    public SharedMessage retain() {
+        buffer.retain();
+        return this;
+    }
+
+    public boolean release() {
+        return buffer.release();
+    }
+}
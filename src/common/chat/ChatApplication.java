@@ -0,0 +1,96 @@
+package common.chat;
+
+import common.buffer.SharedMessage;
+import common.room.ChatCommand;
+import common.room.RoomRegistry;
+import common.transport.Transport;
+import common.transport.TransportConnection;
+import common.transport.TransportHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @des 和IO模型无关的聊天室：四个ChatServer里重复的checkQuit、加入退出、转发都在这里写一次
+ * 协议和ChatCommand一样，转发格式和BIO.server一样是"客户端[端口]:消息"，各个ChatClient都能直接连
+ */
+public class ChatApplication implements TransportHandler {
+    private static final String QUIT = "quit";
+
+    private final Transport transport;
+    private final RoomRegistry<TransportConnection> rooms =
+            new RoomRegistry<>(Runtime.getRuntime().availableProcessors());
+    private final Charset charset = StandardCharsets.UTF_8;
+
+    public ChatApplication(Transport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void onConnected(TransportConnection connection) {
+        //连上来先进大厅
+        rooms.join(ChatCommand.LOBBY, connection);
+    }
+
+    @Override
+    public void onFrame(TransportConnection connection, ByteBuffer frame) {
+        String msg = String.valueOf(charset.decode(frame));
+        if (checkQuit(msg)) {
+            connection.close();
+            return;
+        }
+        if (!msg.isEmpty()) {
+            dispatch(connection, msg);
+        }
+    }
+
+    @Override
+    public void onDisconnected(TransportConnection connection) {
+        rooms.leaveAll(connection);
+    }
+
+    public boolean checkQuit(String msg) {
+        return QUIT.equals(msg);
+    }
+
+    /**
+     * 加入/退出房间，或者在房间里发言
+     */
+    private void dispatch(TransportConnection sender, String msg) {
+        ChatCommand command = ChatCommand.parse(msg);
+        switch (command.getType()) {
+            case JOIN:
+                rooms.join(command.getRoom(), sender);
+                break;
+            case LEAVE:
+                rooms.leave(command.getRoom(), sender);
+                break;
+            case PUBLISH:
+                //只能在自己加入了的房间发言
+                if (rooms.isMember(command.getRoom(), sender)) {
+                    forwardMessage(sender, command.getRoom(), command.getText());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 转发给房间里除了发送者外的所有人，只编码一次，怎么写由传输层决定
+     */
+    private void forwardMessage(TransportConnection sender, String room, String text) {
+        long start = System.nanoTime();
+        SharedMessage message = SharedMessage.encode(transport.getBufferPool(), transport.getFrameCodec(), charset,
+                ChatCommand.format(room, "客户端[" + sender.getRemoteAddress().getPort() + "]:" + text));
+        rooms.forEachMember(room, member -> {
+            if (member != sender) {
+                member.send(message);
+            }
+        });
+        //放掉创建时的引用，还在排队的接收方自己retain过
+        message.release();
+        transport.getMetrics().recordFanout(System.nanoTime() - start);
+    }
+}
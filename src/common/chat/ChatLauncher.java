@@ -0,0 +1,27 @@
+package common.chat;
+
+import common.transport.Transport;
+import common.transport.Transports;
+
+import java.io.IOException;
+
+/**
+ * @des 用指定的传输层启动ChatApplication
+ * 同一个聊天逻辑跑在不同的IO模型上，配合NIO.client.LoadGenerator对比：
+ * java NIO.client.LoadGenerator common.chat.ChatLauncher:7777:bio common.chat.ChatLauncher:7790:nio:4 ...
+ * LoadGenerator会把规格里的端口用-Dchat.port传过来
+ */
+public class ChatLauncher {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        //java common.chat.ChatLauncher [bio|pool|nio|aio] [线程数] [端口]，也可以用-Dchat.transport、-Dchat.threads、-Dchat.port
+        String name = args.length > 0 ? args[0] : System.getProperty("chat.transport", Transports.NIO);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("chat.threads", 0);
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : Integer.getInteger("chat.port", 7777);
+        Transport transport = Transports.create(name, port, threads);
+        transport.start(new ChatApplication(transport));
+        Runtime.getRuntime().addShutdownHook(new Thread(transport::close));
+        System.out.println("聊天服务器启动，传输层:" + name + "，线程数:" + threads + "，端口:" + port);
+        transport.awaitClosed();
+    }
+}
@@ -0,0 +1,46 @@
+package common.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @des 帧的编解码方式，BIO、NIO、AIO服务器共用
+ * 编码是无状态的，可以多个连接共用；解码有状态，每个连接调用newDecoder拿一个自己的
+ */
+public interface FrameCodec {
+
+    FrameDecoder newDecoder();
+
+    /**
+     * 帧头占多少字节
+     */
+    int headerLength();
+
+    /**
+     * 帧尾占多少字节
+     */
+    int trailerLength();
+
+    /**
+     * 在frame的index处写入帧头，不移动position
+     */
+    void writeHeader(ByteBuffer frame, int index, int payloadLength);
+
+    /**
+     * 在frame的当前位置写入帧尾
+     */
+    void writeTrailer(ByteBuffer frame);
+
+    /**
+     * 把payload编码成完整的一帧，返回读模式的堆缓冲区
+     */
+    default ByteBuffer encode(ByteBuffer payload) {
+        int payloadLength = payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(headerLength() + payloadLength + trailerLength());
+        writeHeader(frame, 0, payloadLength);
+        frame.position(headerLength());
+        frame.put(payload);
+        writeTrailer(frame);
+        frame.flip();
+        return frame;
+    }
+}
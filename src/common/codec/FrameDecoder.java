@@ -0,0 +1,79 @@
+package common.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @des 从字节流里切出一帧一帧的消息，TCP会把消息粘在一起或者拆开，不能一次read就当成一条消息
+ * 有状态，每个连接一个；不是线程安全的
+ */
+public abstract class FrameDecoder {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    protected final int maxFrameLength;
+    //上次没凑够一帧的数据，一直处于读模式
+    private ByteBuffer cumulation = EMPTY;
+
+    protected FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 从in中取出下一帧的内容，不够一帧时返回null，in中剩下的数据会被保存起来等下一次
+     * 没有积压数据时，返回的是in的切片，不复制数据；
+     * 返回的帧只在下一次调用decode或者in被复用之前有效，需要保留就自己复制
+     * 调用方式：while ((frame = decoder.decode(in)) != null) { ... }
+     */
+    public ByteBuffer decode(ByteBuffer in) throws FrameTooLongException {
+        if (!cumulation.hasRemaining()) {
+            ByteBuffer frame = extract(in);
+            if (frame == null && in.hasRemaining()) {
+                cumulate(in);
+            }
+            return frame;
+        }
+        cumulate(in);
+        return extract(cumulation);
+    }
+
+    /**
+     * 积压了多少字节还没凑成一帧
+     */
+    public int pendingBytes() {
+        return cumulation.remaining();
+    }
+
+    /**
+     * 把in剩下的数据全部接到积压数据后面，会让之前返回的帧失效
+     */
+    private void cumulate(ByteBuffer in) {
+        if (!in.hasRemaining()) {
+            return;
+        }
+        int required = cumulation.remaining() + in.remaining();
+        if (cumulation.capacity() < required) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(required, cumulation.capacity() * 2));
+            bigger.put(cumulation);
+            cumulation = bigger;
+        } else {
+            cumulation.compact();
+        }
+        cumulation.put(in);
+        cumulation.flip();
+    }
+
+    /**
+     * buf中[start, end)的切片，共享同一块内存
+     */
+    protected static ByteBuffer slice(ByteBuffer buf, int start, int end) {
+        ByteBuffer dup = buf.duplicate();
+        dup.limit(end);
+        dup.position(start);
+        return dup.slice();
+    }
+
+    /**
+     * 在buf的[position, limit)里找完整的一帧：找到就返回帧内容的切片并把position移到帧后面；
+     * 不完整返回null且不移动position；已经能确定超长时抛异常
+     */
+    protected abstract ByteBuffer extract(ByteBuffer buf) throws FrameTooLongException;
+}
@@ -0,0 +1,14 @@
+package common.codec;
+
+import java.io.IOException;
+
+/**
+ * @des 一帧超过了允许的最大长度，一般说明客户端出错或者恶意发送，直接断开连接
+ */
+public class FrameTooLongException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FrameTooLongException(long length, int maxFrameLength) {
+        super("帧长度" + length + "超过了最大限制" + maxFrameLength);
+    }
+}
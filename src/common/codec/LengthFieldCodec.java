@@ -0,0 +1,58 @@
+package common.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @des 4字节大端长度 + 内容的二进制帧，内容里可以有任意字节
+ */
+public class LengthFieldCodec implements FrameCodec {
+    private static final int LENGTH_FIELD = 4;
+
+    private final int maxFrameLength;
+
+    public LengthFieldCodec(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public FrameDecoder newDecoder() {
+        return new FrameDecoder(maxFrameLength) {
+            @Override
+            protected ByteBuffer extract(ByteBuffer buf) throws FrameTooLongException {
+                if (buf.remaining() < LENGTH_FIELD) {
+                    return null;
+                }
+                int start = buf.position();
+                //绝对位置读取，不够一帧时不移动position
+                int length = buf.getInt(start);
+                if (length < 0 || length > maxFrameLength) {
+                    throw new FrameTooLongException(length & 0xFFFFFFFFL, maxFrameLength);
+                }
+                if (buf.remaining() < LENGTH_FIELD + length) {
+                    return null;
+                }
+                buf.position(start + LENGTH_FIELD + length);
+                return slice(buf, start + LENGTH_FIELD, start + LENGTH_FIELD + length);
+            }
+        };
+    }
+
+    @Override
+    public int headerLength() {
+        return LENGTH_FIELD;
+    }
+
+    @Override
+    public int trailerLength() {
+        return 0;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer frame, int index, int payloadLength) {
+        frame.putInt(index, payloadLength);
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer frame) {
+    }
+}
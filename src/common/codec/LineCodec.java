@@ -0,0 +1,64 @@
+package common.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @des 以\n分隔的帧，兼容readLine和telnet，帧内容会去掉结尾的\r
+ */
+public class LineCodec implements FrameCodec {
+    private static final byte LF = '\n';
+    private static final byte CR = '\r';
+
+    private final int maxFrameLength;
+
+    public LineCodec(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    public FrameDecoder newDecoder() {
+        return new FrameDecoder(maxFrameLength) {
+            @Override
+            protected ByteBuffer extract(ByteBuffer buf) throws FrameTooLongException {
+                int start = buf.position();
+                for (int i = start; i < buf.limit(); i++) {
+                    if (buf.get(i) == LF) {
+                        int end = i;
+                        if (end > start && buf.get(end - 1) == CR) {
+                            end--;
+                        }
+                        if (end - start > maxFrameLength) {
+                            throw new FrameTooLongException(end - start, maxFrameLength);
+                        }
+                        buf.position(i + 1);
+                        return slice(buf, start, end);
+                    }
+                }
+                //还没找到分隔符，但已经比最大长度还长了，不用再等了
+                if (buf.remaining() > maxFrameLength + 1) {
+                    throw new FrameTooLongException(buf.remaining(), maxFrameLength);
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public int headerLength() {
+        return 0;
+    }
+
+    @Override
+    public int trailerLength() {
+        return 1;
+    }
+
+    @Override
+    public void writeHeader(ByteBuffer frame, int index, int payloadLength) {
+    }
+
+    @Override
+    public void writeTrailer(ByteBuffer frame) {
+        frame.put(LF);
+    }
+}
@@ -0,0 +1,26 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * @des 接受一个新连接，包括accept系统调用和交给worker注册
+ */
+@Name("easyio.Accept")
+@Label("Accept")
+@Category({"EasyIO", "Socket"})
+@Description("accept一个新连接")
+@Threshold("1 ms")
+@StackTrace(false)
+public class AcceptEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Remote Port")
+    public int remotePort;
+}
@@ -0,0 +1,34 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * @des AIO的一次CompletionHandler回调，回调跑在通道组的线程池里，慢了会拖住同一个池里的其他连接
+ */
+@Name("easyio.AioCompletion")
+@Label("AIO Completion")
+@Category({"EasyIO", "AIO"})
+@Description("一次CompletionHandler.completed回调的耗时")
+@Threshold("1 ms")
+@StackTrace(true)
+public class CompletionEvent extends Event {
+    public static final String ACCEPT = "accept";
+    public static final String READ = "read";
+    public static final String WRITE = "write";
+
+    @Label("Server")
+    public String server;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Result")
+    @Description("read是读到的字节数，write是写出去的字节数")
+    public long result;
+}
@@ -0,0 +1,28 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * @des 一帧从切出来、解码成字符串到处理完的耗时，处理包括加入退出房间和转发
+ */
+@Name("easyio.Decode")
+@Label("Decode")
+@Category({"EasyIO", "Socket"})
+@Description("一帧的解码和处理")
+@Threshold("1 ms")
+@StackTrace(true)
+public class DecodeEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Frame Length")
+    @DataAmount
+    public int frameLength;
+}
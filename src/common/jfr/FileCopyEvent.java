@@ -0,0 +1,37 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * @des 一次文件复制；TreeCopier复制整棵目录时小文件很多，每个都带栈记下来太多，默认只记超过10ms的，要全部记录在JFC里把threshold改成0 ms
+ */
+@Name("easyio.FileCopy")
+@Label("File Copy")
+@Category({"EasyIO", "File"})
+@Description("一次FileCopyRunner.copyFile调用")
+@Threshold("10 ms")
+@StackTrace(true)
+public class FileCopyEvent extends Event {
+    @Label("Runner")
+    public String runner;
+
+    @Label("Source")
+    public String source;
+
+    @Label("Target")
+    public String target;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
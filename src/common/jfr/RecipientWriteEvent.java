@@ -0,0 +1,35 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * @des 转发时给一个接收方投递消息，正常只是入队，很慢说明在抢接收方的锁或者当场写了socket
+ */
+@Name("easyio.RecipientWrite")
+@Label("Recipient Write")
+@Category({"EasyIO", "Socket"})
+@Description("转发时给一个接收方投递一条消息")
+@Threshold("1 ms")
+@StackTrace(true)
+public class RecipientWriteEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Recipient Port")
+    public int recipientPort;
+
+    @Label("Message Size")
+    @DataAmount
+    public int messageSize;
+
+    @Label("Accepted")
+    @Description("false表示超过高水位被丢弃")
+    public boolean accepted;
+}
@@ -0,0 +1,38 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * @des 一次读事件：把socket读空，切帧，每一帧都处理完
+ * 耗时包括处理帧时的转发，和DecodeEvent对照着看就知道慢在读还是慢在处理
+ */
+@Name("easyio.SocketRead")
+@Label("Socket Read")
+@Category({"EasyIO", "Socket"})
+@Description("一次读事件从read到所有帧处理完的耗时")
+@Threshold("1 ms")
+@StackTrace(false)
+public class SocketReadEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Remote Port")
+    public int remotePort;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytesRead;
+
+    @Label("Frames")
+    public int frames;
+
+    @Label("End Of Stream")
+    public boolean endOfStream;
+}
@@ -0,0 +1,39 @@
+package common.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * @des 一次flush：把发送队列尽量写进socket
+ */
+@Name("easyio.SocketWrite")
+@Label("Socket Write")
+@Category({"EasyIO", "Socket"})
+@Description("把一个连接的发送队列写进socket")
+@Threshold("1 ms")
+@StackTrace(false)
+public class SocketWriteEvent extends Event {
+    @Label("Server")
+    public String server;
+
+    @Label("Remote Port")
+    public int remotePort;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytesWritten;
+
+    @Label("Messages Written")
+    public int messagesWritten;
+
+    @Label("Bytes Pending")
+    @Description("没写完留给OP_WRITE的字节数")
+    @DataAmount
+    public long bytesPending;
+}
@@ -0,0 +1,27 @@
+package common.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @des 计数器，用LongAdder分段累加，多个IO线程同时加不会抢同一个缓存行；读的时候才把各段加起来
+ * 可以减，所以也能当"当前值"用，比如在线连接数
+ */
+public class Counter {
+    private final LongAdder adder = new LongAdder();
+
+    public void increment() {
+        adder.increment();
+    }
+
+    public void decrement() {
+        adder.decrement();
+    }
+
+    public void add(long n) {
+        adder.add(n);
+    }
+
+    public long sum() {
+        return adder.sum();
+    }
+}
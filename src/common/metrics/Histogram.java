@@ -0,0 +1,178 @@
+package common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @des 对数-线性分桶的直方图，和HdrHistogram一个思路，用来算延迟的p50/p99/p999
+ * 小于2^SUB_BITS的值每个值一个桶；更大的值按2的幂分段，每段再等分成2^SUB_BITS个桶，相对误差不超过1/2^SUB_BITS
+ * 桶是定长数组，记录时只做一次位运算和一次原子加，不分配对象；多个线程可以同时记录
+ */
+public class Histogram {
+    //每段128个桶，相对误差<1%
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * 记一个值，负数当0
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucketOf(Math.max(0, value)));
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        //value >>> shift在[SUB_COUNT, 2 * SUB_COUNT)之间
+        return SUB_COUNT + shift * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * 桶里最小的值
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+        int sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        return (long) (SUB_COUNT + sub) << shift;
+    }
+
+    /**
+     * 桶里最大的值
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+        return lowerBound(bucket) + (1L << shift) - 1;
+    }
+
+    /**
+     * 把另一个直方图的计数加进来，每个线程记自己的，最后合并
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * 减掉另一个直方图的计数，用来算两个时刻之间新记的部分
+     */
+    void subtract(Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, -count);
+            }
+        }
+    }
+
+    /**
+     * 不超过value的值有多少个，value所在的桶整个算进来，误差和分桶一样不超过1%
+     */
+    public long getCountAtOrBelow(long value) {
+        int last = bucketOf(Math.max(0, value));
+        long total = 0;
+        for (int i = 0; i <= last; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * 第percentile百分位的值，取所在桶的上界，和HdrHistogram的highestEquivalentValue一样偏保守；没有数据返回0
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return getMax();
+    }
+
+    public long getMax() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    public long getMin() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts.get(i) != 0) {
+                return lowerBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 按桶的中点估算
+     */
+    public double getMean() {
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                total += count;
+                sum += count * ((lowerBound(i) + upperBound(i)) / 2.0);
+            }
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * 单位换算后的摘要，比如纳秒记录、按毫秒输出就传1e6
+     */
+    public String summary(double unit, String unitName) {
+        return String.format("count=%d, mean=%.3f%s, p50=%.3f%s, p90=%.3f%s, p99=%.3f%s, p999=%.3f%s, max=%.3f%s",
+                getCount(), getMean() / unit, unitName,
+                getValueAtPercentile(50) / unit, unitName,
+                getValueAtPercentile(90) / unit, unitName,
+                getValueAtPercentile(99) / unit, unitName,
+                getValueAtPercentile(99.9) / unit, unitName,
+                getMax() / unit, unitName);
+    }
+
+    @Override
+    public String toString() {
+        return summary(1, "");
+    }
+}
@@ -0,0 +1,54 @@
+package common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @des 带速率的计数器，速率是最近一分钟的指数加权平均，和uptime的load average一个算法
+ * 记录时只加两个LongAdder，不读时钟；读速率的时候才按经过的时间补上该有的衰减
+ * 两次读之间不知道事件落在哪个时间片，就平均摊到经过的每个时间片上，稳定的流量算出来和按片统计一样
+ */
+public class Meter extends Counter {
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+    //上次读之后新来的事件
+    private final LongAdder uncounted = new LongAdder();
+    private long lastTick = System.nanoTime();
+    //每纳秒多少次
+    private double rate;
+    private boolean initialized;
+
+    @Override
+    public void increment() {
+        super.increment();
+        uncounted.increment();
+    }
+
+    @Override
+    public void add(long n) {
+        super.add(n);
+        uncounted.add(n);
+    }
+
+    /**
+     * 最近一分钟平均每秒多少次
+     */
+    public synchronized double getOneMinuteRate() {
+        long now = System.nanoTime();
+        long ticks = (now - lastTick) / TICK_NANOS;
+        if (ticks > 0) {
+            lastTick += ticks * TICK_NANOS;
+            //这段时间的平均速率，每个时间片都按它算
+            double instantRate = (double) uncounted.sumThenReset() / (ticks * TICK_NANOS);
+            if (initialized) {
+                //连续ticks次rate += ALPHA * (instantRate - rate)合起来
+                rate = instantRate + (rate - instantRate) * Math.pow(1 - ALPHA, ticks);
+            } else {
+                rate = instantRate;
+                initialized = true;
+            }
+        }
+        return rate * TimeUnit.SECONDS.toNanos(1);
+    }
+}
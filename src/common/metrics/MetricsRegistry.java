@@ -0,0 +1,278 @@
+package common.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * @des 所有指标的登记表，按名字去重，同名的指标重复登记拿到的是同一个对象
+ * 导出两种方式：JMX（jconsole、jmc里直接看）和Prometheus的文本格式（scrape方法，由MetricsHttpEndpoint对外提供）
+ * 默认的登记表第一次用到时注册到JMX；启动参数加 -Deasyio.metrics.port=9100 还会开一个HTTP端口给Prometheus抓
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry DEFAULT = createDefault();
+
+    private enum Type {
+        COUNTER,
+        METER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    /**
+     * 登记的一个指标
+     */
+    private static class Entry {
+        final String name;
+        final String help;
+        final Type type;
+        final Object metric;
+        //直方图导出时除以这个数，比如纳秒记录、按秒导出就是1e9
+        final double scale;
+        //直方图导出的桶上界，单位是导出后的单位
+        final double[] buckets;
+
+        Entry(String name, String help, Type type, Object metric, double scale, double[] buckets) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.metric = metric;
+            this.scale = scale;
+            this.buckets = buckets;
+        }
+    }
+
+    private final String name;
+    //按名字排序，导出的顺序是固定的
+    private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+    public MetricsRegistry(String name) {
+        this.name = name;
+    }
+
+    private static MetricsRegistry createDefault() {
+        MetricsRegistry registry = new MetricsRegistry("default");
+        registry.registerMBean();
+        Integer port = Integer.getInteger("easyio.metrics.port");
+        if (port != null) {
+            try {
+                MetricsHttpEndpoint.start(registry, port);
+            } catch (IOException e) {
+                System.err.println("指标的HTTP端口" + port + "启动失败: " + e);
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * 服务器默认共用的登记表
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public Counter counter(String name, String help) {
+        return (Counter) register(name, help, Type.COUNTER, new Counter(), 1, null);
+    }
+
+    public Meter meter(String name, String help) {
+        return (Meter) register(name, help, Type.METER, new Meter(), 1, null);
+    }
+
+    public void gauge(String name, String help, DoubleSupplier gauge) {
+        register(name, help, Type.GAUGE, gauge, 1, null);
+    }
+
+    /**
+     * @param scale   导出时除以多少
+     * @param buckets Prometheus的le桶上界，按导出后的单位从小到大，+Inf会自动加上
+     */
+    public StripedHistogram histogram(String name, String help, double scale, double... buckets) {
+        return (StripedHistogram) register(name, help, Type.HISTOGRAM, new StripedHistogram(), scale, buckets);
+    }
+
+    private Object register(String name, String help, Type type, Object metric, double scale, double[] buckets) {
+        Entry entry = entries.computeIfAbsent(name, n -> new Entry(n, help, type, metric, scale, buckets));
+        if (entry.type != type) {
+            throw new IllegalArgumentException(name + "已经登记成了" + entry.type);
+        }
+        return entry.metric;
+    }
+
+    /**
+     * Prometheus的文本格式：计数器加_total；直方图导出累计的_bucket、_sum、_count，
+     * 分位数由Prometheus按时间窗口算（histogram_quantile加rate），不会被很久以前的数据拖住
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Entry entry : entries.values()) {
+            switch (entry.type) {
+                case COUNTER:
+                    header(sb, entry.name + "_total", entry.help, "counter");
+                    sample(sb, entry.name + "_total", ((Counter) entry.metric).sum());
+                    break;
+                case METER:
+                    Meter meter = (Meter) entry.metric;
+                    header(sb, entry.name + "_total", entry.help, "counter");
+                    sample(sb, entry.name + "_total", meter.sum());
+                    header(sb, entry.name + "_rate1m", entry.help + "，最近一分钟每秒", "gauge");
+                    sample(sb, entry.name + "_rate1m", meter.getOneMinuteRate());
+                    break;
+                case GAUGE:
+                    header(sb, entry.name, entry.help, "gauge");
+                    sample(sb, entry.name, ((DoubleSupplier) entry.metric).getAsDouble());
+                    break;
+                case HISTOGRAM:
+                    StripedHistogram histogram = (StripedHistogram) entry.metric;
+                    Histogram total = histogram.snapshot();
+                    header(sb, entry.name, entry.help, "histogram");
+                    for (double bucket : entry.buckets) {
+                        sample(sb, entry.name + "_bucket{le=\"" + BigDecimal.valueOf(bucket).stripTrailingZeros().toPlainString() + "\"}",
+                                total.getCountAtOrBelow(Math.round(bucket * entry.scale)));
+                    }
+                    sample(sb, entry.name + "_bucket{le=\"+Inf\"}", total.getCount());
+                    sample(sb, entry.name + "_sum", histogram.getSum() / entry.scale);
+                    sample(sb, entry.name + "_count", total.getCount());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * 摊平成"名字 -> 值"，JMX的每个属性是一项；直方图拆成_p50、_p99、_p999、_max，算的是最近一个窗口（至少一分钟），
+     * _count是从启动到现在的总数
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Entry entry : entries.values()) {
+            switch (entry.type) {
+                case COUNTER:
+                    values.put(entry.name, ((Counter) entry.metric).sum());
+                    break;
+                case METER:
+                    values.put(entry.name, ((Meter) entry.metric).sum());
+                    values.put(entry.name + "_rate1m", ((Meter) entry.metric).getOneMinuteRate());
+                    break;
+                case GAUGE:
+                    values.put(entry.name, ((DoubleSupplier) entry.metric).getAsDouble());
+                    break;
+                case HISTOGRAM:
+                    StripedHistogram striped = (StripedHistogram) entry.metric;
+                    Histogram recent = striped.getRecentWindow();
+                    values.put(entry.name + "_p50", recent.getValueAtPercentile(50) / entry.scale);
+                    values.put(entry.name + "_p99", recent.getValueAtPercentile(99) / entry.scale);
+                    values.put(entry.name + "_p999", recent.getValueAtPercentile(99.9) / entry.scale);
+                    values.put(entry.name + "_max", recent.getMax() / entry.scale);
+                    values.put(entry.name + "_count", striped.snapshot().getCount());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 注册成easyio:type=Metrics,name=登记表名字
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("easyio:type=Metrics,name=" + name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new MetricsMBean(), objectName);
+            }
+        } catch (JMException e) {
+            System.err.println("指标注册到JMX失败: " + e);
+        }
+    }
+
+    /**
+     * 指标是运行中陆续登记的，属性列表每次现算，用DynamicMBean而不是固定接口的标准MBean
+     */
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("指标都是只读的: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        /**
+         * 没有提供任何操作
+         */
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName), "指标没有可调用的操作: " + actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> value : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                        value.getKey(), true, false, false);
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "easyio指标", attributes, null, null, null);
+        }
+    }
+}
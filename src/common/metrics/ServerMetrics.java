@@ -0,0 +1,141 @@
+package common.metrics;
+
+import common.buffer.BufferPool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @des 一个聊天服务器的一组指标，名字都以服务器名开头，比如nio_connections_active
+ * 同名的服务器拿到的是同一组指标；记录的方法都是在IO线程的热路径上调用的，只加LongAdder或者记直方图，不加锁不分配
+ */
+public class ServerMetrics {
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    //耗时的桶，10微秒到10秒
+    private static final double[] SECONDS_BUCKETS = {0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005,
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double[] KEYS_BUCKETS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+    private final MetricsRegistry registry;
+    private final String prefix;
+    private final Meter accepted;
+    private final Counter active;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final Counter messagesIn;
+    private final Counter messagesOut;
+    private final Counter dropped;
+    private final Counter outboundQueued;
+    private final StripedHistogram fanout;
+    private final StripedHistogram loopTime;
+    private final StripedHistogram loopBatch;
+
+    public ServerMetrics(MetricsRegistry registry, String server) {
+        this.registry = registry;
+        this.prefix = server + "_";
+        accepted = registry.meter(prefix + "connections_accepted", "接受的连接数");
+        //会增会减，登记成gauge
+        active = new Counter();
+        registry.gauge(prefix + "connections_active", "在线的连接数", active::sum);
+        bytesIn = registry.counter(prefix + "bytes_in", "读到的字节数");
+        bytesOut = registry.counter(prefix + "bytes_out", "写出去的字节数");
+        messagesIn = registry.counter(prefix + "messages_in", "收到的消息条数");
+        messagesOut = registry.counter(prefix + "messages_out", "写完的消息条数，一条广播给n个人算n条");
+        dropped = registry.counter(prefix + "messages_dropped", "发送队列满了丢掉的消息条数");
+        outboundQueued = new Counter();
+        registry.gauge(prefix + "outbound_queued", "所有连接发送队列里排着的消息条数", outboundQueued::sum);
+        fanout = registry.histogram(prefix + "fanout_seconds", "一条广播放进所有接收方队列的耗时",
+                NANOS_PER_SECOND, SECONDS_BUCKETS);
+        loopTime = registry.histogram(prefix + "loop_seconds", "selector一轮循环处理事件的耗时，不含阻塞在select上的时间",
+                NANOS_PER_SECOND, SECONDS_BUCKETS);
+        loopBatch = registry.histogram(prefix + "loop_selected_keys", "selector一轮返回的就绪key个数", 1, KEYS_BUCKETS);
+    }
+
+    /**
+     * 默认登记表里的一组指标
+     */
+    public static ServerMetrics of(String server) {
+        return new ServerMetrics(MetricsRegistry.getDefault(), server);
+    }
+
+    /**
+     * 缓冲区池的使用情况，池本身已经在用LongAdder计数，这里只登记读取方法
+     */
+    public void bindBufferPool(BufferPool pool) {
+        registry.gauge(prefix + "buffer_pool_active", "借出去还没还的缓冲区个数", pool::getActive);
+        registry.gauge(prefix + "buffer_pool_hit_ratio", "从池里拿到缓冲区的比例", pool::getHitRatio);
+        registry.gauge(prefix + "buffer_pool_misses", "池里没有、新分配的次数", pool::getMisses);
+        registry.gauge(prefix + "buffer_pool_huge_allocations", "太大不入池的分配次数", pool::getHugeAllocations);
+        registry.gauge(prefix + "buffer_pool_leaks", "没有release就被GC的缓冲区个数", pool::getLeaks);
+    }
+
+    public void connectionOpened() {
+        accepted.increment();
+        active.increment();
+    }
+
+    public void connectionClosed() {
+        active.decrement();
+    }
+
+    public void bytesRead(long n) {
+        bytesIn.add(n);
+    }
+
+    public void messageReceived() {
+        messagesIn.increment();
+    }
+
+    public void bytesWritten(long n) {
+        bytesOut.add(n);
+    }
+
+    /**
+     * 消息进了某个接收方的发送队列
+     */
+    public void messageQueued() {
+        outboundQueued.increment();
+    }
+
+    /**
+     * 排着的消息写完了
+     */
+    public void messageSent() {
+        outboundQueued.decrement();
+        messagesOut.increment();
+    }
+
+    /**
+     * 不排队、当场写完的消息，比如BIO直接写socket
+     */
+    public void messageWritten() {
+        messagesOut.increment();
+    }
+
+    /**
+     * 排着的消息因为连接断开被扔掉
+     */
+    public void messagesDiscarded(int n) {
+        outboundQueued.add(-n);
+    }
+
+    public void messageDropped() {
+        dropped.increment();
+    }
+
+    /**
+     * 已经排着的消息被新消息挤掉，比如DROP_OLDEST，只算一次丢弃
+     */
+    public void messageEvicted() {
+        dropped.increment();
+        outboundQueued.decrement();
+    }
+
+    public void recordFanout(long nanos) {
+        fanout.record(nanos);
+    }
+
+    public void recordLoop(long nanos, int selectedKeys) {
+        loopTime.record(nanos);
+        loopBatch.record(selectedKeys);
+    }
+}
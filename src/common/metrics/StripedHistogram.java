@@ -0,0 +1,78 @@
+package common.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @des 多个IO线程同时记录的直方图：按线程分成几份Histogram，每个线程基本只碰自己那份，原子加没有竞争
+ * 读的时候再合并；另外算一个最近窗口，窗口至少一分钟，读的时候才换，分位数看的是最近的情况而不是从启动到现在
+ */
+public class StripedHistogram {
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+    //每份Histogram五十多KB，CPU再多也不超过16份
+    private static final int MAX_STRIPES = 16;
+
+    private final Histogram[] stripes;
+    private final int mask;
+    private final LongAdder sum = new LongAdder();
+
+    //上一个完整窗口里记的值
+    private Histogram lastWindow = new Histogram();
+    //当前窗口开始时的累计值
+    private Histogram windowStart = new Histogram();
+    private long windowStartNanos = System.nanoTime();
+
+    public StripedHistogram() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int count = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, cpus * 2 - 1)));
+        stripes = new Histogram[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Histogram();
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * 记一个值，负数当0
+     */
+    public void record(long value) {
+        int h = System.identityHashCode(Thread.currentThread());
+        stripes[(h ^ (h >>> 16)) & mask].record(value);
+        sum.add(Math.max(0, value));
+    }
+
+    /**
+     * 从创建到现在记的所有值，合并成一个新的Histogram
+     */
+    public Histogram snapshot() {
+        Histogram total = new Histogram();
+        for (Histogram stripe : stripes) {
+            total.add(stripe);
+        }
+        return total;
+    }
+
+    /**
+     * 所有记过的值之和
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * 最近一个完整窗口里记的值；第一个窗口还没满时返回到现在为止的部分
+     */
+    public synchronized Histogram getRecentWindow() {
+        long now = System.nanoTime();
+        Histogram total = snapshot();
+        Histogram current = new Histogram();
+        current.add(total);
+        current.subtract(windowStart);
+        if (now - windowStartNanos >= WINDOW_NANOS) {
+            lastWindow = current;
+            windowStart = total;
+            windowStartNanos = now;
+        }
+        return lastWindow.getCount() == 0 ? current : lastWindow;
+    }
+}
@@ -0,0 +1,69 @@
+package common.room;
+
+/**
+ * @des 聊天室的指令协议，每一帧是一条指令：
+ * /join 房间名          加入房间
+ * /leave 房间名         退出房间
+ * /pub 房间名 消息内容   在房间里发言
+ * 其他不以/开头的消息    在大厅里发言，所有人连上来时都在大厅里
+ */
+public class ChatCommand {
+    public static final String LOBBY = "lobby";
+
+    public enum Type {
+        JOIN,
+        LEAVE,
+        PUBLISH,
+        //格式不对的指令
+        INVALID
+    }
+
+    private final Type type;
+    private final String room;
+    private final String text;
+
+    private ChatCommand(Type type, String room, String text) {
+        this.type = type;
+        this.room = room;
+        this.text = text;
+    }
+
+    public static ChatCommand parse(String msg) {
+        if (!msg.startsWith("/")) {
+            return new ChatCommand(Type.PUBLISH, LOBBY, msg);
+        }
+        String[] parts = msg.split(" ", 3);
+        if (parts.length < 2 || parts[1].isEmpty()) {
+            return new ChatCommand(Type.INVALID, null, msg);
+        }
+        switch (parts[0]) {
+            case "/join":
+                return new ChatCommand(Type.JOIN, parts[1], null);
+            case "/leave":
+                return new ChatCommand(Type.LEAVE, parts[1], null);
+            case "/pub":
+                return new ChatCommand(Type.PUBLISH, parts[1], parts.length > 2 ? parts[2] : "");
+            default:
+                return new ChatCommand(Type.INVALID, null, msg);
+        }
+    }
+
+    /**
+     * 转发出去的消息格式：大厅里的消息保持原来的样子，其他房间加上[房间名]前缀
+     */
+    public static String format(String room, String body) {
+        return LOBBY.equals(room) ? body : "[" + room + "]" + body;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
@@ -0,0 +1,63 @@
+package common.room;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * @des 一个聊天室，成员按分片存放：不同worker线程上的成员在不同的集合里，加入退出互不竞争
+ */
+public class Room<M> {
+    private final String name;
+    private final Set<M>[] stripes;
+    private final AtomicInteger size = new AtomicInteger();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Room(String name, int stripeCount) {
+        this.name = name;
+        this.stripes = new Set[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    boolean add(M member, int stripe) {
+        boolean added = stripes[Math.floorMod(stripe, stripes.length)].add(member);
+        if (added) {
+            size.incrementAndGet();
+        }
+        return added;
+    }
+
+    boolean remove(M member, int stripe) {
+        boolean removed = stripes[Math.floorMod(stripe, stripes.length)].remove(member);
+        if (removed) {
+            size.decrementAndGet();
+        }
+        return removed;
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * 遍历所有成员，不加锁，遍历过程中加入退出的成员可能看得到也可能看不到
+     */
+    public void forEach(Consumer<? super M> action) {
+        for (Set<M> stripe : stripes) {
+            for (M member : stripe) {
+                action.accept(member);
+            }
+        }
+    }
+}
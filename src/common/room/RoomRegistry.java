@@ -0,0 +1,122 @@
+package common.room;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * @des 所有聊天室的登记表，广播时只遍历这个房间的成员，开销和房间大小有关，和总连接数无关
+ * 房间在第一个人加入时创建，最后一个人离开时删除，创建删除和加入退出都在ConcurrentHashMap.compute里原子完成
+ */
+public class RoomRegistry<M> {
+    private final ConcurrentHashMap<String, Room<M>> rooms = new ConcurrentHashMap<>();
+    //每个成员加入了哪些房间，断开连接时要全部退出
+    private final ConcurrentHashMap<M, Membership> memberships = new ConcurrentHashMap<>();
+    private final int stripeCount;
+    //成员属于哪个分片，比如它所在的worker线程编号
+    private final ToIntFunction<? super M> stripeOf;
+
+    /**
+     * 一个成员加入的房间，同一个成员的加入退出用它互斥；
+     * 被leaveAll移除后就作废，拿着它的join不会再把成员加回房间
+     */
+    private static final class Membership {
+        final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        boolean removed;
+    }
+
+    public RoomRegistry(int stripeCount, ToIntFunction<? super M> stripeOf) {
+        this.stripeCount = Math.max(1, stripeCount);
+        this.stripeOf = stripeOf;
+    }
+
+    /**
+     * 按成员的identityHashCode分片
+     */
+    public RoomRegistry(int stripeCount) {
+        this(stripeCount, System::identityHashCode);
+    }
+
+    public void join(String roomName, M member) {
+        int stripe = stripeOf.applyAsInt(member);
+        Membership membership = memberships.computeIfAbsent(member, m -> new Membership());
+        synchronized (membership) {
+            if (membership.removed) {
+                //和leaveAll撞上了，成员已经断开
+                return;
+            }
+            rooms.compute(roomName, (name, room) -> {
+                if (room == null) {
+                    room = new Room<>(name, stripeCount);
+                }
+                room.add(member, stripe);
+                return room;
+            });
+            membership.rooms.add(roomName);
+        }
+    }
+
+    public void leave(String roomName, M member) {
+        Membership membership = memberships.get(member);
+        if (membership == null) {
+            return;
+        }
+        synchronized (membership) {
+            if (membership.rooms.remove(roomName)) {
+                removeFromRoom(roomName, member, stripeOf.applyAsInt(member));
+            }
+        }
+    }
+
+    /**
+     * 退出所有房间，连接断开时调用
+     * 断开时读线程可能还在处理这个成员的消息，调用方要在之后检查连接是否还活着，活不了就再调一次
+     */
+    public void leaveAll(M member) {
+        Membership membership = memberships.remove(member);
+        if (membership == null) {
+            return;
+        }
+        int stripe = stripeOf.applyAsInt(member);
+        synchronized (membership) {
+            membership.removed = true;
+            for (String roomName : membership.rooms) {
+                removeFromRoom(roomName, member, stripe);
+            }
+            membership.rooms.clear();
+        }
+    }
+
+    private void removeFromRoom(String roomName, M member, int stripe) {
+        rooms.computeIfPresent(roomName, (name, room) -> {
+            room.remove(member, stripe);
+            //返回null就把空房间删掉
+            return room.isEmpty() ? null : room;
+        });
+    }
+
+    public boolean isMember(String roomName, M member) {
+        Membership membership = memberships.get(member);
+        return membership != null && membership.rooms.contains(roomName);
+    }
+
+    /**
+     * 遍历房间里的所有成员，房间不存在就什么都不做
+     */
+    public void forEachMember(String roomName, Consumer<? super M> action) {
+        Room<M> room = rooms.get(roomName);
+        if (room != null) {
+            room.forEach(action);
+        }
+    }
+
+    public Set<String> getRoomNames() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+
+    public int getRoomCount() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,139 @@
+package common.transport;
+
+import common.codec.FrameDecoder;
+import common.codec.FrameTooLongException;
+import common.metrics.ServerMetrics;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @des 各种传输层的连接共用的部分：编号、切帧、只关闭一次
+ */
+abstract class AbstractConnection implements TransportConnection {
+    private final AbstractTransport transport;
+    protected final ServerMetrics metrics;
+    private final int id;
+    private final InetSocketAddress remoteAddress;
+    //只在这个连接的读线程里用
+    private final FrameDecoder decoder;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    //读线程正在回调handler；这时别的线程close，onDisconnected要等回调返回后由读线程补发
+    private volatile boolean inCallback;
+    private final AtomicBoolean disconnectNotified = new AtomicBoolean();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private volatile Object attachment;
+
+    AbstractConnection(AbstractTransport transport, InetSocketAddress remoteAddress) {
+        this.transport = transport;
+        this.metrics = transport.getMetrics();
+        this.id = transport.nextConnectionId();
+        this.remoteAddress = remoteAddress;
+        this.decoder = transport.getFrameCodec().newDecoder();
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    @Override
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    @Override
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * 可以在任意线程调用；读线程正在回调handler时，onDisconnected推迟到回调返回之后
+     */
+    @Override
+    public final void close() {
+        if (closed.compareAndSet(false, true)) {
+            closeChannel();
+            if (!inCallback) {
+                notifyDisconnected();
+            }
+        }
+    }
+
+    /**
+     * 读线程回调handler之前调用，连接已经关了就返回false，不要再回调
+     * 先写inCallback再读closed，和close里先写closed再读inCallback对应，两边至少有一边能看到对方
+     */
+    boolean enterCallback() {
+        inCallback = true;
+        if (closed.get()) {
+            exitCallback();
+            return false;
+        }
+        return true;
+    }
+
+    void exitCallback() {
+        inCallback = false;
+        if (closed.get()) {
+            notifyDisconnected();
+        }
+    }
+
+    private void notifyDisconnected() {
+        if (disconnectNotified.compareAndSet(false, true)) {
+            transport.disconnected(this);
+        }
+    }
+
+    /**
+     * 关闭底层的socket，放掉还没发出去的消息
+     */
+    protected abstract void closeChannel();
+
+    /**
+     * 读到的字节交给decoder切成帧，每一帧回调一次handler；只能在这个连接的读线程调用
+     */
+    protected void received(ByteBuffer in) throws FrameTooLongException {
+        metrics.bytesRead(in.remaining());
+        ByteBuffer frame;
+        while (isOpen() && (frame = decoder.decode(in)) != null) {
+            metrics.messageReceived();
+            if (!enterCallback()) {
+                return;
+            }
+            try {
+                transport.getHandler().onFrame(this, frame);
+            } finally {
+                exitCallback();
+            }
+        }
+    }
+
+    protected void dropped() {
+        droppedMessages.incrementAndGet();
+        metrics.messageDropped();
+    }
+
+    @Override
+    public String toString() {
+        return transport.getName() + "#" + id + remoteAddress;
+    }
+}
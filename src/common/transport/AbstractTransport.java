@@ -0,0 +1,171 @@
+package common.transport;
+
+import common.buffer.BufferPool;
+import common.codec.FrameCodec;
+import common.codec.LineCodec;
+import common.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des 各种传输层共用的部分：配置、连接登记、生命周期
+ * 子类只管怎么accept、怎么读、怎么写，连上来和断开都经过这里通知handler，保证每个连接只通知一次
+ */
+public abstract class AbstractTransport implements Transport {
+    protected static final int BACKLOG = 1024;
+    private static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final String name;
+    protected final int port;
+    //默认按行分帧，兼容telnet和各个ChatClient
+    private FrameCodec frameCodec = new LineCodec(MAX_FRAME_LENGTH);
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private TransportHandler handler;
+    private final ServerMetrics metrics;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Set<AbstractConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    protected AbstractTransport(String name, int port) {
+        this.name = name;
+        this.port = port;
+        this.metrics = ServerMetrics.of("transport_" + name);
+    }
+
+    /**
+     * 需要在start之前调用
+     */
+    public void setFrameCodec(FrameCodec frameCodec) {
+        this.frameCodec = frameCodec;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public FrameCodec getFrameCodec() {
+        return frameCodec;
+    }
+
+    @Override
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    TransportHandler getHandler() {
+        return handler;
+    }
+
+    int nextConnectionId() {
+        return nextId.incrementAndGet();
+    }
+
+    @Override
+    public final void start(TransportHandler handler) throws IOException {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException(name + "已经启动过了");
+        }
+        this.handler = handler;
+        metrics.bindBufferPool(bufferPool);
+        try {
+            doStart();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 绑定端口、启动IO线程
+     */
+    protected abstract void doStart() throws IOException;
+
+    /**
+     * 停止accept、关掉IO线程
+     */
+    protected abstract void doClose();
+
+    /**
+     * 新连接可以收发了，必须在这个连接的第一次read之前调用
+     */
+    protected void connected(AbstractConnection connection) {
+        connections.add(connection);
+        metrics.connectionOpened();
+        //还没有开始读，不会和onFrame重叠；只防着别的线程这时close
+        if (connection.enterCallback()) {
+            try {
+                handler.onConnected(connection);
+            } finally {
+                connection.exitCallback();
+            }
+        }
+        if (closed.get()) {
+            //和close赛跑，close的时候还没登记上
+            connection.close();
+        }
+    }
+
+    /**
+     * 由AbstractConnection在close之后、没有回调在进行时调用，只会进来一次
+     */
+    void disconnected(AbstractConnection connection) {
+        if (connections.remove(connection)) {
+            metrics.connectionClosed();
+            handler.onDisconnected(connection);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        doClose();
+        for (AbstractConnection connection : connections) {
+            connection.close();
+        }
+        terminated.countDown();
+    }
+
+    @Override
+    public void awaitClosed() throws InterruptedException {
+        terminated.await();
+    }
+
+    protected boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + "(port=" + port + ", connections=" + getConnectionCount() + ")";
+    }
+}
@@ -0,0 +1,288 @@
+package common.transport;
+
+import common.buffer.PooledBuffer;
+import common.buffer.SharedMessage;
+import common.codec.FrameTooLongException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des AIO的传输层，和AIO.chatroom一样：所有回调跑在AsynchronousChannelGroup的线程池里
+ * 每个连接同一时刻只有一个读和一个写；写队列里的消息攒成一批用聚集写发出去，队列满了丢弃
+ */
+public class AioTransport extends AbstractTransport {
+    private static final int BUFFER = 4096;
+    //一次聚集写最多带多少条消息
+    private static final int MAX_GATHER = 16;
+    //每个连接最多积压多少条没写出去的消息
+    private static final int MAX_PENDING_WRITES = 1024;
+
+    private final int threads;
+    private AsynchronousChannelGroup channelGroup;
+    private AsynchronousServerSocketChannel serverSocketChannel;
+
+    public AioTransport(int port, int threads) {
+        super("aio", port);
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    protected void doStart() throws IOException {
+        channelGroup = AsynchronousChannelGroup.withFixedThreadPool(threads, Executors.defaultThreadFactory());
+        serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
+        serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+        serverSocketChannel.accept(null, new AcceptHandler());
+    }
+
+    @Override
+    protected void doClose() {
+        if (channelGroup != null) {
+            try {
+                //会关掉组里所有的channel，还在进行的读写都以失败回调
+                channelGroup.shutdownNow();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Object> {
+        @Override
+        public void completed(AsynchronousSocketChannel channel, Object attachment) {
+            //先挂上下一次accept
+            if (serverSocketChannel.isOpen()) {
+                serverSocketChannel.accept(null, this);
+            }
+            try {
+                AioConnection connection = new AioConnection(channel);
+                connected(connection);
+                connection.read();
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    //忽略
+                }
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Object attachment) {
+            if (!isClosed() && serverSocketChannel.isOpen()) {
+                serverSocketChannel.accept(null, this);
+            }
+        }
+    }
+
+    /**
+     * AIO的连接
+     */
+    private class AioConnection extends AbstractConnection {
+        private final AsynchronousSocketChannel channel;
+        //读缓冲区从池里借，没有读在进行的时候才能还
+        private PooledBuffer readBuffer;
+        private final ReadHandler readHandler = new ReadHandler();
+        private final WriteHandler writeHandler = new WriteHandler();
+
+        private final Queue<SharedMessage> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        //正在写的这一批，只有持有writing的线程才能访问
+        private final SharedMessage[] inFlight = new SharedMessage[MAX_GATHER];
+        private final ByteBuffer[] inFlightViews = new ByteBuffer[MAX_GATHER];
+        private int inFlightOffset;
+        private int inFlightCount;
+
+        AioConnection(AsynchronousSocketChannel channel) throws IOException {
+            super(AioTransport.this, (InetSocketAddress) channel.getRemoteAddress());
+            this.channel = channel;
+            this.readBuffer = getBufferPool().acquire(BUFFER);
+        }
+
+        void read() {
+            ByteBuffer buffer = readBuffer.buffer();
+            buffer.clear();
+            try {
+                channel.read(buffer, null, readHandler);
+            } catch (RuntimeException e) {
+                //组已经关了
+                closeFromRead();
+            }
+        }
+
+        private class ReadHandler implements CompletionHandler<Integer, Object> {
+            @Override
+            public void completed(Integer read, Object attachment) {
+                if (read < 0) {
+                    closeFromRead();
+                    return;
+                }
+                ByteBuffer buffer = readBuffer.buffer();
+                buffer.flip();
+                try {
+                    received(buffer);
+                } catch (FrameTooLongException e) {
+                    closeFromRead();
+                    return;
+                }
+                if (isOpen()) {
+                    read();
+                } else {
+                    //应用在回调里关了连接
+                    releaseBuffer();
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                closeFromRead();
+            }
+        }
+
+        /**
+         * 在读的回调里关闭，这时没有读在进行，可以把读缓冲区还回去
+         */
+        private void closeFromRead() {
+            close();
+            releaseBuffer();
+        }
+
+        private synchronized void releaseBuffer() {
+            if (readBuffer != null) {
+                readBuffer.release();
+                readBuffer = null;
+            }
+        }
+
+        @Override
+        public boolean send(SharedMessage message) {
+            if (!isOpen()) {
+                return false;
+            }
+            if (pendingCount.get() >= MAX_PENDING_WRITES) {
+                dropped();
+                return false;
+            }
+            pendingWrites.offer(message.retain());
+            pendingCount.incrementAndGet();
+            metrics.messageQueued();
+            if (!isOpen()) {
+                //入队的同时连接被关了
+                discardPending();
+                return false;
+            }
+            if (writing.compareAndSet(false, true)) {
+                writeNextBatch();
+            }
+            return true;
+        }
+
+        /**
+         * 把队列里的消息合成一批，一次聚集写发出去，必须持有writing
+         */
+        private void writeNextBatch() {
+            int count = 0;
+            SharedMessage message;
+            while (count < MAX_GATHER && (message = pendingWrites.poll()) != null) {
+                inFlight[count] = message;
+                inFlightViews[count] = message.view();
+                count++;
+            }
+            if (count == 0) {
+                writing.set(false);
+                //放掉writing之前又有消息入队，补一次
+                if (!pendingWrites.isEmpty() && writing.compareAndSet(false, true)) {
+                    writeNextBatch();
+                }
+                return;
+            }
+            pendingCount.addAndGet(-count);
+            inFlightOffset = 0;
+            inFlightCount = count;
+            writeInFlight();
+        }
+
+        private void writeInFlight() {
+            try {
+                channel.write(inFlightViews, inFlightOffset, inFlightCount - inFlightOffset,
+                        0L, TimeUnit.MILLISECONDS, null, writeHandler);
+            } catch (RuntimeException e) {
+                writeFailed();
+            }
+        }
+
+        private class WriteHandler implements CompletionHandler<Long, Object> {
+            @Override
+            public void completed(Long written, Object attachment) {
+                metrics.bytesWritten(written);
+                while (inFlightOffset < inFlightCount && !inFlightViews[inFlightOffset].hasRemaining()) {
+                    metrics.messageSent();
+                    inFlight[inFlightOffset].release();
+                    inFlight[inFlightOffset] = null;
+                    inFlightViews[inFlightOffset] = null;
+                    inFlightOffset++;
+                }
+                if (inFlightOffset < inFlightCount) {
+                    //只写了一部分，从没写完的那条接着写
+                    writeInFlight();
+                } else {
+                    writeNextBatch();
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Object attachment) {
+                writeFailed();
+            }
+        }
+
+        /**
+         * 写失败了，连接不能用了，手里和队列里的消息都放掉；writing不再放开，之后不会再有写
+         */
+        private void writeFailed() {
+            metrics.messagesDiscarded(inFlightCount - inFlightOffset);
+            for (int i = inFlightOffset; i < inFlightCount; i++) {
+                inFlight[i].release();
+                inFlight[i] = null;
+                inFlightViews[i] = null;
+            }
+            inFlightOffset = inFlightCount = 0;
+            close();
+            discardPending();
+        }
+
+        private void discardPending() {
+            SharedMessage message;
+            while ((message = pendingWrites.poll()) != null) {
+                pendingCount.decrementAndGet();
+                metrics.messagesDiscarded(1);
+                message.release();
+            }
+        }
+
+        @Override
+        protected void closeChannel() {
+            try {
+                //还在进行的读写会以失败回调，由它们各自收尾
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!writing.get()) {
+                discardPending();
+            }
+        }
+    }
+}
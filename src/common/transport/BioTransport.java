@@ -0,0 +1,151 @@
+package common.transport;
+
+import common.buffer.SharedMessage;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * @des 阻塞IO的传输层，和BIO.server一样：每个连接一个读线程，发送者在自己的线程里直接写接收方的socket
+ * 接收方读得慢，发送者就被堵在write上，这正是BIO模型的问题，压测时能看出来
+ */
+public class BioTransport extends AbstractTransport {
+    private static final int BUFFER = 8192;
+    //直接缓冲区里的消息要先拷到数组里才能写OutputStream，每个线程一个
+    private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER]);
+
+    private ServerSocket serverSocket;
+
+    public BioTransport(int port) {
+        this("bio", port);
+    }
+
+    protected BioTransport(String name, int port) {
+        super(name, port);
+    }
+
+    @Override
+    protected void doStart() throws IOException {
+        serverSocket = new ServerSocket(port, BACKLOG);
+        Thread acceptor = new Thread(this::acceptLoop, getName() + "-acceptor");
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (!isClosed()) {
+                Socket socket = serverSocket.accept();
+                try {
+                    BioConnection connection = newConnection(socket);
+                    execute(() -> readLoop(connection));
+                } catch (IOException e) {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 读线程怎么来：这里是每个连接新建一个线程
+     */
+    protected void execute(Runnable reader) {
+        new Thread(reader).start();
+    }
+
+    protected BioConnection newConnection(Socket socket) throws IOException {
+        return new BioConnection(this, socket);
+    }
+
+    private void readLoop(BioConnection connection) {
+        try {
+            connected(connection);
+            InputStream in = connection.socket.getInputStream();
+            byte[] buffer = new byte[BUFFER];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                connection.received(ByteBuffer.wrap(buffer, 0, read));
+            }
+        } catch (IOException e) {
+            //客户端突然断开、帧太长（FrameTooLongException），都是断开这个连接
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Override
+    protected void doClose() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 阻塞IO的连接，send在调用者的线程里把整条消息写完才返回
+     */
+    static class BioConnection extends AbstractConnection {
+        final Socket socket;
+        final OutputStream out;
+
+        BioConnection(BioTransport transport, Socket socket) throws IOException {
+            super(transport, (InetSocketAddress) socket.getRemoteSocketAddress());
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER);
+        }
+
+        @Override
+        public boolean send(SharedMessage message) {
+            if (!isOpen()) {
+                return false;
+            }
+            try {
+                //多个发送者可能同时写同一个接收方，一条消息要整条写完
+                synchronized (out) {
+                    write(message.view());
+                    out.flush();
+                }
+                metrics.bytesWritten(message.size());
+                metrics.messageWritten();
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        /**
+         * 把视图里的内容写进缓冲流，不flush
+         */
+        void write(ByteBuffer view) throws IOException {
+            byte[] copy = COPY_BUFFER.get();
+            while (view.hasRemaining()) {
+                int length = Math.min(copy.length, view.remaining());
+                view.get(copy, 0, length);
+                out.write(copy, 0, length);
+            }
+        }
+
+        @Override
+        protected void closeChannel() {
+            try {
+                //阻塞在read上的读线程会因此出错退出
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
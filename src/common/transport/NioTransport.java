@@ -0,0 +1,317 @@
+package common.transport;
+
+import common.buffer.SharedMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des NIO的传输层，和NIO.server一样是主从Reactor：boss线程只accept，workerCount个reactor线程负责读写
+ * workerCount为0时boss自己读写，就是单Reactor
+ * 每个连接有自己的发送队列，写不完的部分等OP_WRITE；队列超过高水位就丢掉新消息，慢的客户端拖不住别人
+ */
+public class NioTransport extends AbstractTransport {
+    private static final int BUFFER = 16 * 1024;
+    private static final int HIGH_WATER_MARK = 64 * 1024;
+
+    private final int workerCount;
+    private int highWaterMark = HIGH_WATER_MARK;
+    private ServerSocketChannel serverSocketChannel;
+    private Reactor boss;
+    private Reactor[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    public NioTransport(int port, int workerCount) {
+        super("nio", port);
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * 每个连接发送队列最多积压多少字节，需要在start之前调用
+     */
+    public void setHighWaterMark(int highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    @Override
+    protected void doStart() throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.bind(new InetSocketAddress(port), BACKLOG);
+        boss = new Reactor(getName() + "-boss");
+        if (workerCount <= 0) {
+            workers = new Reactor[]{boss};
+        } else {
+            workers = new Reactor[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Reactor(getName() + "-worker-" + i);
+                new Thread(workers[i], workers[i].name).start();
+            }
+        }
+        serverSocketChannel.register(boss.selector, SelectionKey.OP_ACCEPT);
+        new Thread(boss, boss.name).start();
+    }
+
+    @Override
+    protected void doClose() {
+        closeQuietly(serverSocketChannel);
+        if (workers != null) {
+            for (Reactor worker : workers) {
+                worker.selector.wakeup();
+            }
+        }
+        if (boss != null) {
+            boss.selector.wakeup();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Reactor chooseWorker() {
+        return workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+    }
+
+    /**
+     * 一个selector + 一条线程
+     */
+    private class Reactor implements Runnable {
+        private final String name;
+        private final Selector selector;
+        //reactor线程独享的读缓冲区
+        private final ByteBuffer rBuffer = ByteBuffer.allocateDirect(BUFFER);
+        //其他线程交过来的任务，只能由本reactor线程执行
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        Reactor(String name) throws IOException {
+            this.name = name;
+            this.selector = Selector.open();
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (!isClosed()) {
+                    selector.select();
+                    //只算处理事件的时间
+                    long start = System.nanoTime();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                    int selected = selectionKeys.size();
+                    for (SelectionKey key : selectionKeys) {
+                        handle(key);
+                    }
+                    selectionKeys.clear();
+                    getMetrics().recordLoop(System.nanoTime() - start, selected);
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!isClosed()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                closeQuietly(selector);
+            }
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            //同一批里前面的事件可能已经把这个连接关了，比如当场flush失败
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                SocketChannel client;
+                //一次把排队的连接都接下来
+                while ((client = serverSocketChannel.accept()) != null) {
+                    SocketChannel accepted = client;
+                    Reactor worker = chooseWorker();
+                    worker.execute(() -> worker.register(accepted));
+                }
+                return;
+            }
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(connection);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                //单个客户端出错不能影响整个reactor
+                connection.close();
+            }
+        }
+
+        /**
+         * 在本reactor线程里注册，不和阻塞在select上的线程抢锁
+         */
+        private void register(SocketChannel client) {
+            try {
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(client, key, this);
+                key.attach(connection);
+                connected(connection);
+            } catch (IOException e) {
+                closeQuietly(client);
+            }
+        }
+
+        private void read(NioConnection connection) throws IOException {
+            int read;
+            do {
+                rBuffer.clear();
+                read = connection.channel.read(rBuffer);
+                rBuffer.flip();
+                //帧是rBuffer的切片，下一次read之前处理完
+                connection.received(rBuffer);
+            } while (read > 0 && connection.isOpen());
+            if (read < 0) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * NIO的连接，作为SelectionKey的attachment
+     */
+    private class NioConnection extends AbstractConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Reactor reactor;
+        //以下字段都由this保护，任意线程都可能往队列里放消息
+        private final Deque<SharedMessage> outbound = new ArrayDeque<>();
+        //队头消息的视图，记录写到哪里了
+        private ByteBuffer headView;
+        private int pendingBytes;
+        private boolean flushScheduled;
+
+        NioConnection(SocketChannel channel, SelectionKey key, Reactor reactor) throws IOException {
+            super(NioTransport.this, (InetSocketAddress) channel.getRemoteAddress());
+            this.channel = channel;
+            this.key = key;
+            this.reactor = reactor;
+        }
+
+        @Override
+        public boolean send(SharedMessage message) {
+            boolean flushNow = false;
+            synchronized (this) {
+                if (!isOpen()) {
+                    return false;
+                }
+                if (pendingBytes + message.size() > highWaterMark) {
+                    dropped();
+                    return false;
+                }
+                outbound.add(message.retain());
+                pendingBytes += message.size();
+                metrics.messageQueued();
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    flushNow = reactor.inEventLoop();
+                    if (!flushNow) {
+                        //只有自己的reactor线程才能动自己的SelectionKey
+                        reactor.execute(this::flushQuietly);
+                    }
+                }
+            }
+            if (flushNow) {
+                flushQuietly();
+            }
+            return true;
+        }
+
+        /**
+         * 尽可能多地写，写不完就监听OP_WRITE，只能在自己的reactor线程调用
+         */
+        synchronized void flush() throws IOException {
+            flushScheduled = false;
+            if (!isOpen()) {
+                return;
+            }
+            while (!outbound.isEmpty()) {
+                if (headView == null) {
+                    headView = outbound.peek().view();
+                }
+                int written = channel.write(headView);
+                pendingBytes -= written;
+                metrics.bytesWritten(written);
+                if (headView.hasRemaining()) {
+                    break;
+                }
+                headView = null;
+                outbound.poll().release();
+                metrics.messageSent();
+            }
+            try {
+                if (outbound.isEmpty()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            } catch (CancelledKeyException e) {
+                //别的线程刚关掉了这个连接
+            }
+        }
+
+        private void flushQuietly() {
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        @Override
+        protected void closeChannel() {
+            key.cancel();
+            closeQuietly(channel);
+            synchronized (this) {
+                metrics.messagesDiscarded(outbound.size());
+                SharedMessage message;
+                while ((message = outbound.poll()) != null) {
+                    message.release();
+                }
+                headView = null;
+                pendingBytes = 0;
+            }
+        }
+    }
+}
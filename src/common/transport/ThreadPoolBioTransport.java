@@ -0,0 +1,153 @@
+package common.transport;
+
+import common.buffer.SharedMessage;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @des 线程池BIO的传输层，和BIO_UseThreadPool.server一样：读线程从线程池拿，
+ * 每个接收方有自己的信箱，发送者只投递不等写完，由写任务在另一个线程池里慢慢写，信箱满了丢弃
+ * threads大于0时读线程池是固定大小，超出的连接要等前面的断开才有线程读；不传就用虚拟线程（JDK 21以下退化为缓存线程池）
+ */
+public class ThreadPoolBioTransport extends BioTransport {
+    private static final int MAILBOX_CAPACITY = 1024;
+
+    private final ExecutorService readers;
+    private final ExecutorService writers;
+
+    public ThreadPoolBioTransport(int port, int threads) {
+        super("pool", port);
+        if (threads > 0) {
+            readers = Executors.newFixedThreadPool(threads);
+            //写任务不能占读线程池，不然固定大小的池很快被写任务占满
+            writers = Executors.newCachedThreadPool();
+        } else {
+            readers = newVirtualThreadExecutor();
+            writers = readers;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            //反射调用，代码在JDK 21以下也能编译运行
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    @Override
+    protected void execute(Runnable reader) {
+        readers.execute(reader);
+    }
+
+    @Override
+    protected BioConnection newConnection(Socket socket) throws IOException {
+        return new MailboxConnection(this, socket);
+    }
+
+    @Override
+    protected void doClose() {
+        super.doClose();
+        readers.shutdownNow();
+        writers.shutdownNow();
+    }
+
+    /**
+     * 发送者只把消息放进信箱，同一时刻最多一个写任务，写空了就退出
+     */
+    private class MailboxConnection extends BioConnection {
+        private final BlockingQueue<SharedMessage> mailbox = new ArrayBlockingQueue<>(MAILBOX_CAPACITY);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        MailboxConnection(ThreadPoolBioTransport transport, Socket socket) throws IOException {
+            super(transport, socket);
+        }
+
+        @Override
+        public boolean send(SharedMessage message) {
+            if (!isOpen()) {
+                return false;
+            }
+            //在信箱里的消息由写任务release
+            if (!mailbox.offer(message.retain())) {
+                message.release();
+                dropped();
+                return false;
+            }
+            metrics.messageQueued();
+            if (!isOpen()) {
+                //入队的同时连接被关了
+                discard();
+                return false;
+            }
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (isOpen() && scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this::drain);
+                } catch (RuntimeException e) {
+                    //线程池已经关了
+                    scheduled.set(false);
+                    discard();
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                SharedMessage message;
+                while (isOpen() && (message = mailbox.poll()) != null) {
+                    try {
+                        write(message.view());
+                        metrics.bytesWritten(message.size());
+                    } finally {
+                        message.release();
+                        metrics.messageSent();
+                    }
+                    //信箱空了才flush，多条消息合成一次系统调用
+                    if (mailbox.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            } finally {
+                scheduled.set(false);
+                //退出前又有新消息进来了，要再调度一次
+                if (!mailbox.isEmpty()) {
+                    if (isOpen()) {
+                        schedule();
+                    } else {
+                        discard();
+                    }
+                }
+            }
+        }
+
+        private void discard() {
+            SharedMessage message;
+            while ((message = mailbox.poll()) != null) {
+                message.release();
+                metrics.messagesDiscarded(1);
+            }
+        }
+
+        @Override
+        protected void closeChannel() {
+            super.closeChannel();
+            discard();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package common.transport;
+
+import common.buffer.BufferPool;
+import common.codec.FrameCodec;
+import common.metrics.ServerMetrics;
+
+import java.io.IOException;
+
+/**
+ * @des 传输层：负责监听端口、收发字节、切帧，和聊天逻辑无关
+ * BIO、线程池BIO、NIO、AIO各有一个实现，上层的应用只和TransportHandler、TransportConnection打交道，
+ * 换一种IO模型只是换一个Transport，应用代码一行不改，压测对比的才是IO模型本身
+ */
+public interface Transport {
+
+    /**
+     * 开始监听，建好线程就返回，不阻塞调用者；只能调用一次
+     */
+    void start(TransportHandler handler) throws IOException;
+
+    /**
+     * 停止监听并断开所有连接
+     */
+    void close();
+
+    /**
+     * 阻塞到close被调用
+     */
+    void awaitClosed() throws InterruptedException;
+
+    /**
+     * bio、pool、nio、aio
+     */
+    String getName();
+
+    int getPort();
+
+    int getConnectionCount();
+
+    /**
+     * 应用发消息时用同一个codec编码，保证帧格式和传输层切帧的方式一致
+     */
+    FrameCodec getFrameCodec();
+
+    BufferPool getBufferPool();
+
+    /**
+     * 指标名以transport_加传输层名字开头，比如transport_nio_connections_active
+     */
+    ServerMetrics getMetrics();
+}
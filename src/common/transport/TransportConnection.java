@@ -0,0 +1,45 @@
+package common.transport;
+
+import common.buffer.SharedMessage;
+
+import java.net.InetSocketAddress;
+
+/**
+ * @des 一个客户端连接，应用通过它往外写消息
+ */
+public interface TransportConnection {
+
+    /**
+     * 传输层内唯一的编号
+     */
+    int getId();
+
+    InetSocketAddress getRemoteAddress();
+
+    /**
+     * 发一帧，可以在任意线程调用
+     * 需要在send返回后继续用消息的实现会自己retain，调用方照常release自己那一次引用就行
+     * @param message 用传输层的FrameCodec编码好的完整一帧，多个接收方共享
+     * @return 连接已经关闭或者发送队列满了被丢弃时返回false
+     */
+    boolean send(SharedMessage message);
+
+    /**
+     * 断开连接，可以重复调用，handler的onDisconnected只会收到一次
+     */
+    void close();
+
+    boolean isOpen();
+
+    /**
+     * 因为发送队列满了丢掉的消息数
+     */
+    long getDroppedMessages();
+
+    /**
+     * 应用挂在连接上的数据
+     */
+    Object getAttachment();
+
+    void setAttachment(Object attachment);
+}
@@ -0,0 +1,21 @@
+package common.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @des 应用处理入站事件的回调
+ * 同一个连接的回调不会并发：onConnected最先，onFrame按收到的顺序，onDisconnected最后且只有一次；
+ * 发送失败等原因在别的线程关掉连接时，如果读线程正在onFrame里，onDisconnected等它返回后在读线程里发出
+ * 不同连接的回调可能在不同线程同时发生；在NIO、AIO下回调跑在IO线程上，不能阻塞
+ */
+public interface TransportHandler {
+
+    void onConnected(TransportConnection connection);
+
+    /**
+     * 收到完整的一帧，frame是读缓冲区的切片，只在这次调用里有效，需要保留就自己复制
+     */
+    void onFrame(TransportConnection connection, ByteBuffer frame);
+
+    void onDisconnected(TransportConnection connection);
+}
@@ -0,0 +1,33 @@
+package common.transport;
+
+/**
+ * @des 按名字创建传输层，换IO模型只改配置
+ */
+public final class Transports {
+    public static final String BIO = "bio";
+    public static final String POOL = "pool";
+    public static final String NIO = "nio";
+    public static final String AIO = "aio";
+
+    private Transports() {
+    }
+
+    /**
+     * @param name    bio、pool、nio、aio
+     * @param threads pool是读线程池大小（0表示虚拟线程），nio是worker数量（0表示单Reactor），aio是回调线程数（0表示CPU核数），bio不用
+     */
+    public static Transport create(String name, int port, int threads) {
+        switch (name) {
+            case BIO:
+                return new BioTransport(port);
+            case POOL:
+                return new ThreadPoolBioTransport(port, threads);
+            case NIO:
+                return new NioTransport(port, threads);
+            case AIO:
+                return new AioTransport(port, threads);
+            default:
+                throw new IllegalArgumentException("不认识的传输层: " + name + "，可选bio、pool、nio、aio");
+        }
+    }
+}
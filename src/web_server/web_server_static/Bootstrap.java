@@ -0,0 +1,21 @@
+package web_server.web_server_static;
+
+import java.nio.file.Paths;
+
+/**
+ * @des 静态文件服务器的启动类，访问localhost:8888/index.html
+ * java web_server.web_server_static.Bootstrap [端口] [根目录] [worker数量] [缓存MB，0表示不缓存]
+ */
+public class Bootstrap {
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
+        String root = args.length > 1 ? args[1] : "resources";
+        int workerCount = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long cacheMegabytes = args.length > 3 ? Long.parseLong(args[3]) : 64;
+        HttpServer server = new HttpServer(port, Paths.get(root), workerCount);
+        if (cacheMegabytes > 0) {
+            server.setFileCache(new FileCache(cacheMegabytes << 20));
+        }
+        server.start();
+    }
+}
@@ -0,0 +1,82 @@
+package web_server.web_server_static;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @des Range请求头里的一段，闭区间[first, last]
+ * 支持bytes=0-99、bytes=100-、bytes=-100（最后100字节）以及用逗号分开的多段
+ */
+public class ByteRange {
+    //一个请求最多多少段，防止有人用成千上万个小段把服务器拖垮
+    static final int MAX_RANGES = 16;
+
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    long length() {
+        return last - first + 1;
+    }
+
+    /**
+     * Content-Range头的值
+     */
+    String contentRange(long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * 解析Range头
+     * @return null表示格式不对或者段太多，应该忽略Range返回整个文件；空列表表示没有一段在文件范围内，应该返回416
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                String start = spec.substring(0, dash).trim();
+                String end = spec.substring(dash + 1).trim();
+                long first;
+                long last;
+                if (start.isEmpty()) {
+                    //最后N个字节
+                    long suffix = Long.parseLong(end);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(start);
+                    last = end.isEmpty() ? size - 1 : Math.min(Long.parseLong(end), size - 1);
+                    if (first < 0 || (!end.isEmpty() && Long.parseLong(end) < first)) {
+                        return null;
+                    }
+                }
+                //超出文件末尾的段不满足，跳过
+                if (first < size && first <= last) {
+                    ranges.add(new ByteRange(first, last));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+}
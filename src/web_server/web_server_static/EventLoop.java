@@ -0,0 +1,126 @@
+package web_server.web_server_static;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des 一个selector + 一条线程，和NIO.server.Reactor一样，分配给它的连接的读写都在这条线程里完成
+ * select最多等一秒，顺便检查有没有空闲太久的长连接
+ */
+public class EventLoop implements Runnable {
+    private final HttpServer server;
+    private final String name;
+    private final Selector selector;
+    //本线程的连接共用的读缓冲区，读完没处理掉的半个请求才拷到连接自己的缓冲区里
+    final ByteBuffer rBuffer;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    private final AtomicInteger connections = new AtomicInteger();
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    public EventLoop(HttpServer server, String name, int bufferSize) throws IOException {
+        this.server = server;
+        this.name = name;
+        this.selector = Selector.open();
+        this.rBuffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 可以在任意线程调用，任务由本线程在下一轮循环执行
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 可以在任意线程调用，由本线程自己把连接注册到selector上
+     */
+    public void register(SocketChannel client) {
+        connections.incrementAndGet();
+        execute(() -> {
+            try {
+                client.configureBlocking(false);
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                key.attach(new HttpConnection(key, this, server.getHandler(), server.getMaxHeaderSize()));
+            } catch (IOException e) {
+                connections.decrementAndGet();
+                server.close(client);
+            }
+        });
+    }
+
+    void deregister() {
+        connections.decrementAndGet();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 关掉超过空闲时间没有任何读写的连接
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < 1000) {
+            return;
+        }
+        lastIdleCheck = now;
+        long idleTimeout = server.getIdleTimeoutMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof HttpConnection && now - ((HttpConnection) attachment).getLastActive() > idleTimeout) {
+                ((HttpConnection) attachment).close();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select(1000);
+                runTasks();
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                for (SelectionKey selectionKey : selectionKeys) {
+                    server.handles(selectionKey);
+                }
+                selectionKeys.clear();
+                closeIdle();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            server.close(selector);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package web_server.web_server_static;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @des 热点文件缓存，省掉每个请求都要open、stat、transferTo的开销
+ * 小文件：实体头（Content-Type、Content-Length、Last-Modified、ETag）和文件内容放在同一个直接缓冲区里，发送时用它的只读视图
+ * 大文件：实体头单独一个缓冲区，内容整个mmap进来
+ * 按总字节数做LRU淘汰；文件变了靠WatchService通知失效，WatchService收不到事件的时候（比如网络文件系统）再按修改时间定期复查
+ * 被淘汰的缓冲区不用手动释放，正在发送的响应还拿着视图，都发完了由GC回收
+ */
+public class FileCache {
+    /**
+     * 一个缓存的文件
+     */
+    static class Entry {
+        final Path path;
+        final long size;
+        //秒
+        final long lastModified;
+        //小文件是实体头+内容；大文件只有实体头
+        final ByteBuffer headers;
+        //实体头的长度，HEAD请求只发这一段
+        final int headerLength;
+        //大文件的内容，小文件是null
+        final MappedByteBuffer mapped;
+        volatile long checkedAt;
+
+        Entry(Path path, long size, long lastModified, ByteBuffer headers, int headerLength, MappedByteBuffer mapped) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.headers = headers;
+            this.headerLength = headerLength;
+            this.mapped = mapped;
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * 占用缓存容量的字节数
+         */
+        long weight() {
+            return headers.capacity() + (mapped != null ? mapped.capacity() : 0);
+        }
+
+        /**
+         * 实体头（GET还要加上内容），每个响应拿一份自己的视图，position互不影响
+         */
+        ByteBuffer headerView(boolean withBody) {
+            ByteBuffer view = headers.asReadOnlyBuffer();
+            if (!withBody || mapped != null) {
+                view.limit(headerLength);
+            }
+            return view;
+        }
+
+        ByteBuffer bodyView() {
+            return mapped != null ? mapped.asReadOnlyBuffer() : null;
+        }
+
+        /**
+         * 内容里的一段，Range请求用
+         */
+        ByteBuffer bodySlice(long position, long count) {
+            ByteBuffer view = mapped != null ? mapped.asReadOnlyBuffer() : headers.asReadOnlyBuffer();
+            int start = (int) position + (mapped != null ? 0 : headerLength);
+            view.limit(start + (int) count).position(start);
+            return view;
+        }
+    }
+
+    private final long maxBytes;
+    private final int smallFileThreshold;
+    private final long mappedThreshold;
+    private final long revalidateMillis;
+    //accessOrder为true，get的时候把条目挪到队尾，队头就是最久没用的
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long currentBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private WatchService watchService;
+    private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param maxBytes           缓存总共最多占多少字节
+     * @param smallFileThreshold 不超过这个大小的文件和实体头放进同一个直接缓冲区
+     * @param mappedThreshold    超过这个大小的文件不缓存，还是每次transferTo
+     * @param revalidateMillis   隔多久按修改时间复查一次，WatchService漏掉事件时兜底
+     */
+    public FileCache(long maxBytes, int smallFileThreshold, long mappedThreshold, long revalidateMillis) {
+        this.maxBytes = maxBytes;
+        this.smallFileThreshold = smallFileThreshold;
+        this.mappedThreshold = Math.min(mappedThreshold, Integer.MAX_VALUE);
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    public FileCache(long maxBytes) {
+        this(maxBytes, 64 * 1024, 64L << 20, 2000);
+    }
+
+    /**
+     * 启动监听文件变化的线程；不支持WatchService就只靠定期复查
+     */
+    public void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            return;
+        }
+        Thread watcher = new Thread(this::watch, "file-cache-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 找缓存的文件，没有就读进来；太大、不是普通文件或者读失败返回null，由调用方走不缓存的路子
+     */
+    Entry get(Path path, String contentType) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.checkedAt > revalidateMillis) {
+            entry = revalidate(entry, now);
+        }
+        if (entry != null) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        entry = load(path, contentType);
+        if (entry != null) {
+            put(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 修改时间和大小都没变就继续用，否则作废
+     */
+    private Entry revalidate(Entry entry, long now) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(entry.path, BasicFileAttributes.class);
+            if (attributes.size() == entry.size && attributes.lastModifiedTime().toMillis() / 1000 == entry.lastModified) {
+                entry.checkedAt = now;
+                return entry;
+            }
+        } catch (IOException e) {
+            //文件被删了
+        }
+        invalidate(entry.path);
+        return null;
+    }
+
+    private Entry load(Path path, String contentType) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long size = attributes.size();
+            if (!attributes.isRegularFile() || size > mappedThreshold || size > maxBytes) {
+                return null;
+            }
+            long lastModified = attributes.lastModifiedTime().toMillis() / 1000;
+            byte[] header = StaticFileHandler.entityHeaders(contentType, size, lastModified,
+                    StaticFileHandler.etag(size, lastModified))
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                Entry entry;
+                if (size <= smallFileThreshold) {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(header.length + (int) size);
+                    buffer.put(header);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            //读的过程中文件被截短了，不缓存
+                            return null;
+                        }
+                    }
+                    buffer.flip();
+                    entry = new Entry(path, size, lastModified, buffer, header.length, null);
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(header.length);
+                    buffer.put(header).flip();
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    entry = new Entry(path, size, lastModified, buffer, header.length, mapped);
+                }
+                watch(path.getParent());
+                return entry;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private synchronized void put(Entry entry) {
+        Entry old = entries.put(entry.path, entry);
+        if (old != null) {
+            currentBytes -= old.weight();
+        }
+        currentBytes += entry.weight();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            currentBytes -= eldest.weight();
+            evictions.increment();
+        }
+    }
+
+    public synchronized void invalidate(Path path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            currentBytes -= entry.weight();
+            invalidations.increment();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations.add(entries.size());
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * 监听文件所在的目录，每个目录只注册一次
+     */
+    private void watch(Path dir) {
+        if (watchService == null || dir == null || !watchedDirs.add(dir)) {
+            return;
+        }
+        try {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | ClosedWatchServiceException e) {
+            watchedDirs.remove(dir);
+        }
+    }
+
+    /**
+     * 监听线程：目录里有文件变了就把它从缓存里去掉，事件太多丢了（OVERFLOW）就全部作废
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateAll();
+                    } else {
+                        invalidate(dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    //目录被删了
+                    watchedDirs.remove(dir);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //缓存关闭了
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileCache{entries=%d, bytes=%d/%d, hits=%d, misses=%d, hitRatio=%.3f, evictions=%d, invalidations=%d}",
+                getEntryCount(), getCurrentBytes(), maxBytes, getHits(), getMisses(), getHitRatio(),
+                getEvictions(), getInvalidations());
+    }
+}
@@ -0,0 +1,184 @@
+package web_server.web_server_static;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * @des 一个HTTP长连接，作为SelectionKey的attachment，只在自己的EventLoop线程里使用，不用加锁
+ * 流水线：客户端可以不等响应连发多个请求，响应按请求的顺序排队发送；排队太多就先不读，发完了再读
+ */
+public class HttpConnection {
+    //最多积压多少个没发完的响应
+    private static final int MAX_PIPELINED = 16;
+
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final StaticFileHandler handler;
+    private final int maxHeaderSize;
+    private final Deque<HttpResponse> responses = new ArrayDeque<>();
+    //还没凑成完整请求的数据，没有的时候是null，空闲的长连接不占缓冲区
+    private ByteBuffer inbound;
+    //上一个请求带的请求体还有多少字节要跳过
+    private long bodyToSkip;
+    //已经决定关闭连接，后面的请求不再处理
+    private boolean closing;
+    private boolean closed;
+    private long lastActive = System.currentTimeMillis();
+
+    public HttpConnection(SelectionKey key, EventLoop loop, StaticFileHandler handler, int maxHeaderSize) {
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.loop = loop;
+        this.handler = handler;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    public long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * OP_READ：有请求来了
+     */
+    void onReadable() throws IOException {
+        ByteBuffer buffer = inbound;
+        if (buffer == null) {
+            buffer = loop.rBuffer;
+            buffer.clear();
+        }
+        int read = channel.read(buffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        lastActive = System.currentTimeMillis();
+        buffer.flip();
+        process(buffer);
+        keepRemaining(buffer);
+        flush();
+    }
+
+    /**
+     * 没处理完的数据留到下次：共用的读缓冲区马上要给别的连接用，拷到自己的缓冲区里
+     */
+    private void keepRemaining(ByteBuffer buffer) {
+        if (!buffer.hasRemaining() || closing) {
+            inbound = null;
+        } else if (buffer == inbound) {
+            buffer.compact();
+        } else {
+            inbound = ByteBuffer.allocate(Math.max(maxHeaderSize, buffer.remaining()));
+            inbound.put(buffer);
+        }
+    }
+
+    /**
+     * 把buffer里完整的请求都解析出来，生成响应排进队列
+     */
+    private void process(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closing && responses.size() < MAX_PIPELINED) {
+            if (bodyToSkip > 0) {
+                int skip = (int) Math.min(bodyToSkip, buffer.remaining());
+                buffer.position(buffer.position() + skip);
+                bodyToSkip -= skip;
+                continue;
+            }
+            HttpResponse response;
+            try {
+                HttpRequest request = HttpRequest.parse(buffer, maxHeaderSize);
+                if (request == null) {
+                    break;
+                }
+                bodyToSkip = request.getContentLength();
+                response = handler.handle(request);
+                if (!request.isKeepAlive()) {
+                    response.setCloseConnection(true);
+                }
+            } catch (HttpException e) {
+                response = handler.error(e.getStatus(), false);
+            }
+            if (response.isCloseConnection()) {
+                closing = true;
+            }
+            responses.add(response);
+        }
+        //排队的响应太多了，先不读，发完了再继续
+        updateReadInterest(responses.size() < MAX_PIPELINED && !closing);
+    }
+
+    /**
+     * OP_WRITE：socket发送缓冲区有空位了
+     */
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * 按顺序发响应，发不完就监听OP_WRITE；队列空了就看看有没有因为流水线太长而没处理的请求
+     */
+    private void flush() throws IOException {
+        while (!responses.isEmpty()) {
+            HttpResponse response = responses.peek();
+            long before = response.getBytesWritten();
+            boolean done = response.writeTo(channel);
+            if (response.getBytesWritten() > before) {
+                //还在往外写的连接不算空闲，大文件、慢客户端发很久也不会被closeIdle关掉
+                lastActive = System.currentTimeMillis();
+            }
+            if (!done) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            responses.poll().close();
+            if (response.isCloseConnection()) {
+                close();
+                return;
+            }
+            if (responses.isEmpty() && inbound != null && !closing) {
+                //之前积压的请求，现在可以处理了
+                process(inbound.flip());
+                keepRemaining(inbound);
+            }
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        updateReadInterest(!closing);
+    }
+
+    private void updateReadInterest(boolean reading) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (reading) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        } else {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 关闭连接，放掉还没发完的响应打开的文件
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        HttpResponse response;
+        while ((response = responses.poll()) != null) {
+            response.close();
+        }
+        inbound = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        loop.deregister();
+    }
+}
@@ -0,0 +1,21 @@
+package web_server.web_server_static;
+
+import java.io.IOException;
+
+/**
+ * @des 请求不合法，带上要返回给客户端的状态码，返回后关闭连接
+ */
+public class HttpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public HttpException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,118 @@
+package web_server.web_server_static;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @des 一个HTTP请求的请求行和请求头，只用来取静态文件，请求体直接跳过
+ */
+public class HttpRequest {
+    private final String method;
+    private final String uri;
+    private final String version;
+    //请求头的名字统一转成小写
+    private final Map<String, String> headers;
+
+    HttpRequest(String method, String uri, String version, Map<String, String> headers) {
+        this.method = method;
+        this.uri = uri;
+        this.version = version;
+        this.headers = headers;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * 去掉查询参数的路径
+     */
+    public String getPath() {
+        int query = uri.indexOf('?');
+        return query < 0 ? uri : uri.substring(0, query);
+    }
+
+    /**
+     * HTTP/1.1默认长连接，除非Connection: close；HTTP/1.0要显式Connection: keep-alive
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("connection");
+        if ("HTTP/1.1".equals(version)) {
+            return connection == null || !connection.equalsIgnoreCase("close");
+        }
+        return connection != null && connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * 请求体长度，没有就是0
+     */
+    public long getContentLength() throws HttpException {
+        String length = getHeader("content-length");
+        if (length == null) {
+            return 0;
+        }
+        try {
+            long value = Long.parseLong(length.trim());
+            if (value < 0) {
+                throw new NumberFormatException();
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Content-Length不合法: " + length);
+        }
+    }
+
+    /**
+     * 从buffer里解析一个完整的请求头，buffer处于读模式
+     * 还没收全就返回null，buffer的position不动；解析成功后position移到请求头之后，多个流水线请求可以连着解析
+     * @param maxHeaderSize 请求头最大长度，超过了还没结束就抛431
+     */
+    public static HttpRequest parse(ByteBuffer buffer, int maxHeaderSize) throws HttpException {
+        int start = buffer.position();
+        int limit = Math.min(buffer.limit(), start + maxHeaderSize);
+        int end = -1;
+        for (int i = start; i + 3 < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (buffer.remaining() >= maxHeaderSize) {
+                throw new HttpException(431, "请求头超过" + maxHeaderSize + "字节");
+            }
+            return null;
+        }
+        byte[] bytes = new byte[end - start];
+        buffer.get(bytes);
+        buffer.position(end + 4);
+        String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+            throw new HttpException(400, "请求行不合法: " + lines[0]);
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new HttpException(400, "请求头不合法: " + lines[i]);
+            }
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        return new HttpRequest(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+}
@@ -0,0 +1,140 @@
+package web_server.web_server_static;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * @des 一个要发出去的响应，由若干段组成：内存里的ByteBuffer，或者文件里的一段
+ * 连续的ByteBuffer合成一次聚集写，文件段用transferTo直接从页缓存发到socket，不经过用户态
+ * 一次写不完就停下，等OP_WRITE再从停下的地方接着写
+ */
+public class HttpResponse {
+    //一次聚集写最多合并多少段
+    private static final int MAX_GATHER = 16;
+
+    //ByteBuffer或者FileRegion
+    private final Deque<Object> parts = new ArrayDeque<>();
+    //响应发完或者连接关闭时要关掉的文件
+    private final List<Closeable> resources = new ArrayList<>(1);
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    //发完这个响应就关闭连接
+    private boolean closeConnection;
+    //已经写出去的字节数
+    private long bytesWritten;
+
+    /**
+     * 文件里的一段
+     */
+    private static class FileRegion {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        FileRegion(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = count;
+        }
+    }
+
+    public HttpResponse addBuffer(ByteBuffer buffer) {
+        if (buffer.hasRemaining()) {
+            parts.add(buffer);
+        }
+        return this;
+    }
+
+    public HttpResponse addFileRegion(FileChannel channel, long position, long count) {
+        if (count > 0) {
+            parts.add(new FileRegion(channel, position, count));
+        }
+        return this;
+    }
+
+    /**
+     * 文件由响应负责关闭
+     */
+    public HttpResponse addResource(Closeable resource) {
+        resources.add(resource);
+        return this;
+    }
+
+    public boolean isCloseConnection() {
+        return closeConnection;
+    }
+
+    public void setCloseConnection(boolean closeConnection) {
+        this.closeConnection = closeConnection;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * 尽量多写，全部写完返回true；socket发送缓冲区满了返回false，等下次OP_WRITE再调用
+     */
+    public boolean writeTo(SocketChannel channel) throws IOException {
+        while (!parts.isEmpty()) {
+            Object head = parts.peek();
+            if (head instanceof ByteBuffer) {
+                int count = 0;
+                for (Object part : parts) {
+                    if (!(part instanceof ByteBuffer) || count == MAX_GATHER) {
+                        break;
+                    }
+                    gather[count++] = (ByteBuffer) part;
+                }
+                bytesWritten += channel.write(gather, 0, count);
+                while (!parts.isEmpty() && parts.peek() instanceof ByteBuffer && !((ByteBuffer) parts.peek()).hasRemaining()) {
+                    parts.poll();
+                }
+                for (int i = 0; i < count; i++) {
+                    gather[i] = null;
+                }
+                if (!parts.isEmpty() && parts.peek() instanceof ByteBuffer) {
+                    return false;
+                }
+            } else {
+                FileRegion region = (FileRegion) head;
+                long written = region.channel.transferTo(region.position, region.remaining, channel);
+                region.position += written;
+                region.remaining -= written;
+                bytesWritten += written;
+                if (region.remaining > 0) {
+                    if (written == 0) {
+                        if (region.position >= region.channel.size()) {
+                            throw new IOException("文件在发送过程中被截短了");
+                        }
+                        return false;
+                    }
+                    continue;
+                }
+                parts.poll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 响应发完或者连接断开时调用
+     */
+    public void close() {
+        parts.clear();
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        resources.clear();
+    }
+}
@@ -0,0 +1,138 @@
+package web_server.web_server_static;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @des 基于NIO的静态文件服务器，和NIO.server.ChatServer一样是主从Reactor：
+ * boss只负责accept，连接轮流分给workerCount个EventLoop，每个连接的读写都固定在一条线程上
+ * 支持HTTP/1.1长连接和流水线，文件内容用transferTo发送
+ */
+public class HttpServer {
+    private static final int BUFFER = 16 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+
+    private final int port;
+    private final int workerCount;
+    private final StaticFileHandler handler;
+    private ServerSocketChannel serverSocketChannel;
+    private EventLoop boss;
+    private EventLoop[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private long idleTimeoutMillis = IDLE_TIMEOUT_MILLIS;
+
+    public HttpServer(int port, Path root, int workerCount) {
+        this.port = port;
+        this.workerCount = Math.max(1, workerCount);
+        this.handler = new StaticFileHandler(root);
+    }
+
+    /**
+     * 缓存热点文件，需要在start之前调用，不调用就不缓存
+     */
+    public void setFileCache(FileCache fileCache) {
+        handler.setFileCache(fileCache);
+    }
+
+    /**
+     * 长连接空闲多久关闭，需要在start之前调用
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    StaticFileHandler getHandler() {
+        return handler;
+    }
+
+    int getMaxHeaderSize() {
+        return MAX_HEADER_SIZE;
+    }
+
+    public void start() {
+        try {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.configureBlocking(false);
+            //大量并发连接时加大backlog，避免SYN队列满了丢连接
+            serverSocketChannel.bind(new InetSocketAddress(port), 4096);
+            boss = new EventLoop(this, "http-boss", BUFFER);
+            workers = new EventLoop[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new EventLoop(this, "http-worker-" + i, BUFFER);
+                new Thread(workers[i], workers[i].getName()).start();
+            }
+            if (handler.getFileCache() != null) {
+                handler.getFileCache().start();
+            }
+            serverSocketChannel.register(boss.getSelector(), SelectionKey.OP_ACCEPT);
+            System.out.println("静态文件服务器启动，监听端口:" + port + "，根目录:" + handler.getRoot() + "，worker数量:" + workerCount);
+            boss.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            close(serverSocketChannel);
+            if (handler.getFileCache() != null) {
+                handler.getFileCache().close();
+            }
+        }
+    }
+
+    /**
+     * 处理被触发的事件，由EventLoop线程调用
+     */
+    void handles(SelectionKey selectionKey) {
+        if (selectionKey.isValid() && selectionKey.isAcceptable()) {
+            accept();
+            return;
+        }
+        HttpConnection connection = (HttpConnection) selectionKey.attachment();
+        try {
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                connection.onWritable();
+            }
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                connection.onReadable();
+            }
+        } catch (IOException e) {
+            //单个连接出错不能影响其他连接
+            connection.close();
+        }
+    }
+
+    /**
+     * 一次把积压的连接都accept完，轮流分给worker
+     */
+    private void accept() {
+        try {
+            SocketChannel client;
+            while ((client = serverSocketChannel.accept()) != null) {
+                client.socket().setTcpNoDelay(true);
+                workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)].register(client);
+            }
+        } catch (IOException e) {
+            //文件句柄用完之类的错误，下一轮再试
+            e.printStackTrace();
+        }
+    }
+
+    void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package web_server.web_server_static;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @des 分段并行下载：先用HEAD拿到文件大小和ETag，再开N个连接，每个连接用Range请求一段
+ * 收到的数据用transferFrom按位置直接写进目标文件，各段互不干扰，不用最后再拼
+ * 每段请求都带If-Range，下载过程中文件变了服务器会返回整个文件，这时报错而不是拼出一个混合的文件
+ * java web_server.web_server_static.RangeDownloader http://localhost:8888/bigFile.mp4 保存路径 [连接数]
+ */
+public class RangeDownloader {
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    private final URI uri;
+    private final int connections;
+
+    public RangeDownloader(URI uri, int connections) {
+        if (!"http".equals(uri.getScheme())) {
+            throw new IllegalArgumentException("只支持http: " + uri);
+        }
+        this.uri = uri;
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * 一个响应的状态码和响应头，body是已经和响应头一起读进来的那部分响应体
+     */
+    private static class Response {
+        int status;
+        final Map<String, String> headers = new HashMap<>();
+        ByteBuffer body;
+
+        long contentLength() {
+            String length = headers.get("content-length");
+            return length == null ? -1 : Long.parseLong(length);
+        }
+    }
+
+    /**
+     * 下载到target，返回下载的字节数
+     */
+    public long download(File target) throws IOException {
+        Response head;
+        try (SocketChannel channel = connect()) {
+            head = request(channel, "HEAD", null, null);
+        }
+        if (head.status != 200) {
+            throw new IOException("HEAD " + uri + "返回" + head.status);
+        }
+        long size = head.contentLength();
+        String etag = head.headers.get("etag");
+        boolean acceptRanges = "bytes".equals(head.headers.get("accept-ranges"));
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(Math.max(size, 0));
+        }
+        if (connections == 1 || !acceptRanges || size <= 0) {
+            //单连接，普通GET
+            try (FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.WRITE);
+                 SocketChannel channel = connect()) {
+                Response response = request(channel, "GET", null, null);
+                if (response.status != 200) {
+                    throw new IOException("GET " + uri + "返回" + response.status);
+                }
+                receive(channel, response, fout, 0, response.contentLength());
+                return response.contentLength();
+            }
+        }
+        long segment = (size + connections - 1) / connections;
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try (FileChannel fout = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long first = 0; first < size; first += segment) {
+                long start = first;
+                long last = Math.min(first + segment, size) - 1;
+                futures.add(executor.submit(() -> {
+                    downloadRange(fout, start, last, size, etag);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("下载被中断", e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+            return size;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void downloadRange(FileChannel fout, long first, long last, long size, String etag) throws IOException {
+        try (SocketChannel channel = connect()) {
+            Response response = request(channel, "GET", "bytes=" + first + "-" + last, etag);
+            String expected = "bytes " + first + "-" + last + "/" + size;
+            if (response.status != 206 || !expected.equals(response.headers.get("content-range"))) {
+                throw new IOException("Range " + first + "-" + last + "返回" + response.status
+                        + " " + response.headers.get("content-range") + "，文件可能在下载过程中变了");
+            }
+            receive(channel, response, fout, first, last - first + 1);
+        }
+    }
+
+    /**
+     * 先写和响应头一起读进来的那部分，剩下的用transferFrom从socket直接写到文件的对应位置
+     */
+    private static void receive(SocketChannel channel, Response response, FileChannel fout, long position, long count)
+            throws IOException {
+        ByteBuffer body = response.body;
+        if (body.remaining() > count) {
+            body.limit(body.position() + (int) count);
+        }
+        long done = 0;
+        while (body.hasRemaining()) {
+            done += fout.write(body, position + done);
+        }
+        while (done < count) {
+            long transferred = fout.transferFrom(channel, position + done, count - done);
+            if (transferred <= 0) {
+                throw new IOException("连接提前关闭，还差" + (count - done) + "字节");
+            }
+            done += transferred;
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        int port = uri.getPort() > 0 ? uri.getPort() : 80;
+        return SocketChannel.open(new InetSocketAddress(uri.getHost(), port));
+    }
+
+    /**
+     * 发请求并读完响应头，每个连接只发一个请求
+     */
+    private Response request(SocketChannel channel, String method, String range, String ifRange) throws IOException {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(uri.getAuthority()).append("\r\n");
+        if (range != null) {
+            sb.append("Range: ").append(range).append("\r\n");
+            if (ifRange != null) {
+                sb.append("If-Range: ").append(ifRange).append("\r\n");
+            }
+        }
+        sb.append("Connection: close\r\n\r\n");
+        ByteBuffer request = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        while (request.hasRemaining()) {
+            channel.write(request);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        int end;
+        while ((end = headerEnd(buffer)) < 0) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("响应头超过" + MAX_HEADER_SIZE + "字节");
+            }
+            if (channel.read(buffer) < 0) {
+                throw new IOException("连接提前关闭");
+            }
+        }
+        String[] lines = new String(buffer.array(), 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+        Response response = new Response();
+        response.status = Integer.parseInt(lines[0].split(" ")[1]);
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                response.headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        buffer.flip().position(end + 4);
+        response.body = buffer;
+        return response;
+    }
+
+    private static int headerEnd(ByteBuffer buffer) {
+        byte[] array = buffer.array();
+        for (int i = 0; i + 3 < buffer.position(); i++) {
+            if (array[i] == '\r' && array[i + 1] == '\n' && array[i + 2] == '\r' && array[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("用法: RangeDownloader <url> <保存路径> [连接数]");
+            return;
+        }
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        RangeDownloader downloader = new RangeDownloader(URI.create(args[0]), connections);
+        long start = System.nanoTime();
+        long bytes = downloader.download(new File(args[1]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%d个连接下载%d字节，%.3f s，%.1f MB/s",
+                connections, bytes, seconds, bytes / seconds / (1 << 20)));
+    }
+}
@@ -0,0 +1,384 @@
+package web_server.web_server_static;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @des 把请求路径映射到根目录下的文件，只支持GET和HEAD
+ * 响应头放在一个小的ByteBuffer里，文件内容用transferTo发，不读进内存
+ * 配了FileCache的话，缓存里有的文件直接用缓存的缓冲区，一次聚集写发出去
+ * 支持Range/If-Range断点续传和分段下载，多段时返回multipart/byteranges，每段还是transferTo或者缓存的切片
+ */
+public class StaticFileHandler {
+    private static final String SERVER = "EasyIO";
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json; charset=utf-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+    }
+
+    private final Path root;
+    private FileCache fileCache;
+    //200响应的状态行和通用头，一秒内都一样，不用每个请求拼一次
+    private volatile GeneralHeaders generalHeaders;
+
+    /**
+     * 响应体从哪里来：文件或者缓存，按位置取一段加到响应里
+     */
+    private interface Body {
+        void add(HttpResponse response, long position, long count);
+    }
+
+    /**
+     * 某一秒的200响应头，长连接和短连接各一份
+     */
+    private static class GeneralHeaders {
+        final long second;
+        final ByteBuffer keepAlive;
+        final ByteBuffer close;
+
+        GeneralHeaders(long second) {
+            this.second = second;
+            this.keepAlive = ByteBuffer.wrap(generalHeaders(200, second, true).getBytes(StandardCharsets.ISO_8859_1));
+            this.close = ByteBuffer.wrap(generalHeaders(200, second, false).getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    public StaticFileHandler(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public void setFileCache(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    public HttpResponse handle(HttpRequest request) {
+        boolean keepAlive = request.isKeepAlive();
+        boolean head = request.getMethod().equals("HEAD");
+        if (!head && !request.getMethod().equals("GET")) {
+            return error(405, keepAlive);
+        }
+        Path file = resolve(request.getPath());
+        if (file == null) {
+            return error(404, keepAlive);
+        }
+        if (fileCache != null) {
+            FileCache.Entry entry = fileCache.get(file, contentType(file));
+            if (entry != null) {
+                HttpResponse response = head ? null : ranged(request, entry.size, entry.lastModified,
+                        contentType(file), keepAlive, (r, position, count) -> r.addBuffer(entry.bodySlice(position, count)));
+                return response != null ? response : cached(entry, request, head, keepAlive);
+            }
+        }
+        FileChannel channel = null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return error(404, keepAlive);
+            }
+            long lastModified = attributes.lastModifiedTime().toMillis() / 1000;
+            if (notModified(request, lastModified)) {
+                return new HttpResponse().addBuffer(header(304, null, -1, lastModified, keepAlive));
+            }
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            long size = channel.size();
+            FileChannel fileChannel = channel;
+            HttpResponse response = head ? null : ranged(request, size, lastModified, contentType(file), keepAlive,
+                    (r, position, count) -> r.addFileRegion(fileChannel, position, count));
+            if (response != null) {
+                return response.addResource(channel);
+            }
+            response = new HttpResponse()
+                    .addBuffer(header(200, contentType(file), size, lastModified, etag(size, lastModified), keepAlive))
+                    .addResource(channel);
+            if (!head) {
+                response.addFileRegion(channel, 0, size);
+            }
+            return response;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return error(404, keepAlive);
+        }
+    }
+
+    /**
+     * 用缓存的文件响应：通用头 + 缓存里的实体头和内容，大文件再加上mmap的内容
+     */
+    private HttpResponse cached(FileCache.Entry entry, HttpRequest request, boolean head, boolean keepAlive) {
+        if (notModified(request, entry.lastModified)) {
+            return new HttpResponse().addBuffer(header(304, null, -1, entry.lastModified, keepAlive));
+        }
+        HttpResponse response = new HttpResponse()
+                .addBuffer(okHeaders(keepAlive))
+                .addBuffer(entry.headerView(!head));
+        if (!head && entry.mapped != null) {
+            response.addBuffer(entry.bodyView());
+        }
+        return response;
+    }
+
+    /**
+     * 处理Range请求；没有Range、Range格式不对、If-Range对不上时返回null，由调用方返回整个文件
+     */
+    private HttpResponse ranged(HttpRequest request, long size, long lastModified, String contentType,
+                                boolean keepAlive, Body body) {
+        String range = request.getHeader("range");
+        if (range == null || !ifRangeMatches(request, size, lastModified)) {
+            return null;
+        }
+        List<ByteRange> ranges = ByteRange.parse(range, size);
+        if (ranges == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis() / 1000;
+        if (ranges.isEmpty()) {
+            String header = generalHeaders(416, now, keepAlive)
+                    + "Content-Range: bytes */" + size + "\r\nContent-Length: 0\r\n\r\n";
+            return new HttpResponse().addBuffer(ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1)));
+        }
+        String etag = etag(size, lastModified);
+        HttpResponse response = new HttpResponse();
+        if (ranges.size() == 1) {
+            ByteRange only = ranges.get(0);
+            String header = generalHeaders(206, now, keepAlive)
+                    + "Content-Range: " + only.contentRange(size) + "\r\n"
+                    + entityHeaders(contentType, only.length(), lastModified, etag);
+            response.addBuffer(ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1)));
+            body.add(response, only.first, only.length());
+            return response;
+        }
+        //多段：每段前面是分隔符和这一段的头，最后是结束分隔符，Content-Length要把这些都算上
+        String boundary = "EASYIO_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        byte[][] partHeaders = new byte[ranges.size()][];
+        long contentLength = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: "
+                    + ranges.get(i).contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            contentLength += partHeaders[i].length + ranges.get(i).length();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += end.length;
+        String header = generalHeaders(206, now, keepAlive)
+                + entityHeaders("multipart/byteranges; boundary=" + boundary, contentLength, lastModified, etag);
+        response.addBuffer(ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1)));
+        for (int i = 0; i < ranges.size(); i++) {
+            response.addBuffer(ByteBuffer.wrap(partHeaders[i]));
+            body.add(response, ranges.get(i).first, ranges.get(i).length());
+        }
+        return response.addBuffer(ByteBuffer.wrap(end));
+    }
+
+    /**
+     * If-Range可以是ETag或者日期，和当前文件对得上才按Range返回，否则说明文件变了，要返回整个文件
+     */
+    private static boolean ifRangeMatches(HttpRequest request, long size, long lastModified) {
+        String ifRange = request.getHeader("if-range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            //弱ETag不能用来判断Range
+            return ifRange.equals(etag(size, lastModified));
+        }
+        try {
+            return ZonedDateTime.parse(ifRange, HTTP_DATE).toEpochSecond() == lastModified;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 由修改时间和大小生成的强ETag
+     */
+    static String etag(long size, long lastModified) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    private ByteBuffer okHeaders(boolean keepAlive) {
+        long second = System.currentTimeMillis() / 1000;
+        GeneralHeaders headers = generalHeaders;
+        if (headers == null || headers.second != second) {
+            headers = new GeneralHeaders(second);
+            generalHeaders = headers;
+        }
+        return (keepAlive ? headers.keepAlive : headers.close).duplicate();
+    }
+
+    /**
+     * 请求路径转成根目录下的文件，不允许用..跑到根目录外面，目录就找里面的index.html
+     */
+    Path resolve(String path) {
+        String decoded;
+        try {
+            decoded = URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+        if (!decoded.startsWith("/") || decoded.indexOf('\0') >= 0) {
+            return null;
+        }
+        Path file = root.resolve(decoded.substring(1)).normalize();
+        if (!file.startsWith(root)) {
+            return null;
+        }
+        if (Files.isDirectory(file)) {
+            file = file.resolve("index.html");
+        }
+        return file;
+    }
+
+    private static boolean notModified(HttpRequest request, long lastModified) {
+        String since = request.getHeader("if-modified-since");
+        if (since == null) {
+            return false;
+        }
+        try {
+            return ZonedDateTime.parse(since, HTTP_DATE).toEpochSecond() >= lastModified;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+        return type != null ? type : "application/octet-stream";
+    }
+
+    static String formatDate(long epochSecond) {
+        return HTTP_DATE.format(Instant.ofEpochSecond(epochSecond).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * 响应头
+     * @param contentLength 小于0表示没有响应体
+     * @param lastModified 秒，小于0表示不带Last-Modified
+     */
+    ByteBuffer header(int status, String contentType, long contentLength, long lastModified, boolean keepAlive) {
+        return header(status, contentType, contentLength, lastModified, null, keepAlive);
+    }
+
+    /**
+     * @param etag 为null表示不是文件内容，不带ETag和Accept-Ranges
+     */
+    ByteBuffer header(int status, String contentType, long contentLength, long lastModified, String etag,
+                      boolean keepAlive) {
+        String general = generalHeaders(status, System.currentTimeMillis() / 1000, keepAlive);
+        if (status == 405) {
+            general += "Allow: GET, HEAD\r\n";
+        }
+        String header = general + entityHeaders(contentType, contentLength, lastModified, etag);
+        return ByteBuffer.wrap(header.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * 状态行和每个响应都会变的头：日期、连接是否保持
+     */
+    static String generalHeaders(int status, long now, boolean keepAlive) {
+        return "HTTP/1.1 " + status + ' ' + reason(status) + "\r\n"
+                + "Date: " + formatDate(now) + "\r\n"
+                + "Server: " + SERVER + "\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n";
+    }
+
+    /**
+     * 只和文件有关的头，文件不变就不变，可以和内容一起缓存；以空行结尾
+     */
+    static String entityHeaders(String contentType, long contentLength, long lastModified, String etag) {
+        StringBuilder sb = new StringBuilder(128);
+        if (contentType != null) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (contentLength >= 0) {
+            sb.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (lastModified >= 0) {
+            sb.append("Last-Modified: ").append(formatDate(lastModified)).append("\r\n");
+        }
+        if (etag != null) {
+            sb.append("ETag: ").append(etag).append("\r\n");
+            sb.append("Accept-Ranges: bytes\r\n");
+        }
+        return sb.append("\r\n").toString();
+    }
+
+    /**
+     * 错误响应，响应体就是状态码和原因
+     */
+    public HttpResponse error(int status, boolean keepAlive) {
+        byte[] body = (status + " " + reason(status) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        HttpResponse response = new HttpResponse()
+                .addBuffer(header(status, "text/plain; charset=utf-8", body.length, -1, keepAlive))
+                .addBuffer(ByteBuffer.wrap(body));
+        response.setCloseConnection(!keepAlive);
+        return response;
+    }
+
+    static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 416:
+                return "Range Not Satisfiable";
+            case 431:
+                return "Request Header Fields Too Large";
+            default:
+                return "Error";
+        }
+    }
+}